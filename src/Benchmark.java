@@ -0,0 +1,1041 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmarks do servidor.
+ * Uso: java Benchmark <modo> [argumentos]
+ *   codec [pedidos]  - compara o codec antigo (DataInputStream/DataOutputStream) com o FrameCodec
+ *   hotkeys [threads] - GETs concorrentes numa chave, com e sem a cópia de leitura de chaves quentes
+ *   txn [clientes]    - incrementos read-modify-write de 2 contadores por transação otimista
+ *   dedup [chaves]    - PUTs de 5 valores de 1 KiB repetidos por muitas chaves, com e sem deduplicação
+ *   login [threads]   - ligações novas com LOGIN completo ou com token de sessão, sob carga de PUT/GET
+ *   batch [chaves]    - MULTIPUT/MULTIGET de um lote grande, sequencial, em paralelo e em blocos
+ *   cdc [puts]        - custo do feed de alterações nos PUTs e ritmo de leitura de um consumidor
+ *   protocol [pedidos] - bytes e custo de descodificação por pedido no protocolo v1 e no v2 compacto
+ */
+public class Benchmark {
+    private static final byte CMD_PUT = 1;
+    private static final byte CMD_GET = 2;
+    private static final byte CMD_EXIT = 3;
+    private static final byte CMD_LOGIN = 4;
+    private static final byte CMD_REGISTER = 5;
+    private static final byte CMD_MULTIPUT = 6;
+    private static final byte CMD_MULTIGET = 7;
+    private static final byte CMD_GETVERSION = 11;
+    private static final byte CMD_TXN = 12;
+    private static final byte CMD_FEATURES = 13;
+    private static final byte CMD_RESUME = 14;
+    private static final byte CMD_CHANGES = 15;
+    private static final byte CMD_HELLO = 16;
+
+    private static final int FEATURE_SESSION_TOKEN = 2;
+    private static final int FEATURE_STREAMING = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Uso: java Benchmark <modo> [argumentos]");
+            return;
+        }
+
+        switch (args[0].toLowerCase()) {
+            case "codec":
+                runCodecBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+                break;
+            case "hotkeys":
+                runHotKeysBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+                break;
+            case "txn":
+                runTxnBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+                break;
+            case "dedup":
+                runDedupBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+                break;
+            case "batch":
+                runBatchBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+                break;
+            case "cdc":
+                runChangeFeedBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 500000);
+                break;
+            case "protocol":
+                runProtocolBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+                break;
+            case "login":
+                runLoginBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 4);
+                break;
+            default:
+                System.out.println("Modo desconhecido: " + args[0]);
+        }
+    }
+
+    // ---- codec ----
+
+    private static void runCodecBenchmark(int requests) throws IOException, InterruptedException {
+        List<String> keys = Arrays.asList("key1", "key2", "key3", "key4", "key5");
+        byte[] value = new byte[64];
+        Arrays.fill(value, (byte) 'v');
+
+        // Pedidos codificados como o ClientBatch os envia
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DataOutputStream encoder = new DataOutputStream(encoded);
+        int[] boundaries = new int[requests];
+        Random random = new Random(42);
+        for (int i = 0; i < requests; i++) {
+            String key = keys.get(random.nextInt(keys.size()));
+            if (random.nextBoolean()) {
+                encoder.writeByte(CMD_PUT);
+                encoder.writeUTF(key);
+                encoder.writeInt(value.length);
+                encoder.write(value);
+            } else {
+                encoder.writeByte(CMD_GET);
+                encoder.writeUTF(key);
+            }
+            boundaries[i] = encoded.size();
+        }
+        byte[] input = encoded.toByteArray();
+
+        // Aquecimento
+        for (int i = 0; i < 5; i++) {
+            serveInMemory(false, input, boundaries, requests);
+            serveInMemory(true, input, boundaries, requests);
+        }
+
+        System.out.println("Pedidos: " + requests + " (50% PUT de 64 bytes, 50% GET)");
+        System.out.println("-- em memória (cada read devolve no máximo um pedido, como um socket)");
+        System.out.printf("%-12s %12s %12s %14s %12s%n", "codec", "reads/req", "writes/req", "bytes aloc/req", "ops/s");
+        report("legacy", requests, serveInMemory(false, input, boundaries, requests));
+        report("FrameCodec", requests, serveInMemory(true, input, boundaries, requests));
+
+        int socketRequests = Math.min(requests, 500);
+        System.out.println("-- loopback TCP, um pedido de cada vez como o ClientBatch (" + socketRequests + " pedidos)");
+        System.out.printf("%-12s %12s %12s %14s %12s%n", "codec", "reads/req", "writes/req", "bytes aloc/req", "ops/s");
+        report("legacy", socketRequests, serveOverSocket(false, input, boundaries, socketRequests));
+        report("FrameCodec", socketRequests, serveOverSocket(true, input, boundaries, socketRequests));
+    }
+
+    private static void report(String name, int requests, long[] r) {
+        System.out.printf("%-12s %12.2f %12.2f %14.1f %12.0f%n", name,
+                (double) r[0] / requests, (double) r[1] / requests,
+                (double) r[2] / requests, requests / (r[3] / 1e9));
+    }
+
+    private static long[] serveInMemory(boolean useCodec, byte[] input, int[] boundaries, int requests)
+            throws IOException {
+        CountingInputStream in = new CountingInputStream(new SegmentedInputStream(input, boundaries));
+        CountingOutputStream out = new CountingOutputStream(OutputStream.nullOutputStream());
+        return serve(useCodec, in, out, requests);
+    }
+
+    private static long[] serveOverSocket(boolean useCodec, byte[] input, int[] boundaries, int requests)
+            throws IOException, InterruptedException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread client = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", serverSocket.getLocalPort())) {
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    int from = 0;
+                    for (int i = 0; i < requests; i++) {
+                        out.write(input, from, boundaries[i] - from);
+                        out.flush();
+                        boolean isPut = input[from] == CMD_PUT;
+                        from = boundaries[i];
+                        if (in.readBoolean() && !isPut) {
+                            in.readFully(new byte[in.readInt()]);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            client.start();
+            try (Socket socket = serverSocket.accept()) {
+                long[] result = serve(useCodec, new CountingInputStream(socket.getInputStream()),
+                        new CountingOutputStream(socket.getOutputStream()), requests);
+                client.join();
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Serve PUT/GET como o ClientHandler: o caminho legacy replica o handler original
+     * (DataInputStream/DataOutputStream sem buffer sobre o socket).
+     * Devolve {reads, writes, bytes alocados, nanos}.
+     */
+    private static long[] serve(boolean useCodec, CountingInputStream socketIn, CountingOutputStream socketOut,
+                                int requests) throws IOException {
+        Map<String, byte[]> storage = new HashMap<>();
+        DataInputStream in = new DataInputStream(socketIn);
+        DataOutputStream out = new DataOutputStream(socketOut);
+        BufferPool pool = new BufferPool(FrameCodec.BUFFER_SIZE, 2);
+        FrameCodec codec = new FrameCodec(socketIn, socketOut, pool);
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            if (useCodec) {
+                byte command = codec.readByte();
+                String key = codec.readKey();
+                if (command == CMD_PUT) {
+                    storage.put(key, codec.readValue());
+                    codec.writeBoolean(true);
+                } else {
+                    byte[] value = storage.get(key);
+                    if (value != null) {
+                        codec.writeBoolean(true);
+                        codec.writeValue(value);
+                    } else {
+                        codec.writeBoolean(false);
+                    }
+                }
+            } else {
+                byte command = in.readByte();
+                String key = in.readUTF();
+                if (command == CMD_PUT) {
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    storage.put(key, value);
+                    out.writeBoolean(true);
+                } else {
+                    byte[] value = storage.get(key);
+                    if (value != null) {
+                        out.writeBoolean(true);
+                        out.writeInt(value.length);
+                        out.write(value);
+                    } else {
+                        out.writeBoolean(false);
+                    }
+                }
+            }
+        }
+        codec.flush();
+        long elapsed = System.nanoTime() - start;
+        long allocatedDelta = allocatedBytes() - allocated;
+        codec.release();
+        return new long[]{socketIn.calls, socketOut.calls, allocatedDelta, elapsed};
+    }
+
+    // ---- hotkeys ----
+
+    private static void runHotKeysBenchmark(int threads) throws InterruptedException {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Server server = new Server(threads);
+            server.put("hot", "value".getBytes(), server.getAccount(""));
+            for (int i = 0; i < 1000; i++) {
+                server.put("key" + i, "value".getBytes(), server.getAccount(""));
+            }
+
+            // Antes de qualquer janela fechar, nenhuma chave é quente
+            double locked = runGets(server, threads, 2000);
+            server.refreshHotKeys();
+            double replicated = runGets(server, threads, 2000);
+
+            console.println("Threads: " + threads + ", 90% dos GETs na chave \"hot\"");
+            console.printf("%-22s %14.0f GETs/s%n", "storageLock", locked);
+            console.printf("%-22s %14.0f GETs/s%n", "cópia de leitura", replicated);
+            console.println(server.statsReport());
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static double runGets(Server server, int threads, long millis) throws InterruptedException {
+        LongAdder total = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                long ops = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 100; i++) {
+                        server.get(random.nextInt(10) == 0 ? "key" + random.nextInt(1000) : "hot");
+                    }
+                    ops += 100;
+                }
+                total.add(ops);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.sum() / (millis / 1000.0);
+    }
+
+    // ---- txn ----
+
+    private static void runTxnBenchmark(int clients) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            int port = startServer(clients + 1);
+            console.println("Clientes: " + clients + ", cada transação lê e incrementa 2 contadores distintos (3 s)");
+            console.printf("%-10s %12s %12s %12s %14s %10s%n",
+                    "contadores", "commits/s", "aborts/s", "taxa abort", "tentativas/s", "soma ok");
+            int round = 0;
+            for (int counters : new int[]{2, 4, 16, 256}) {
+                runTxnRound(console, port, clients, counters, "r" + (round++) + "-", 3000);
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static void runTxnRound(PrintStream console, int port, int clients, int counters,
+                                    String prefix, long millis) throws Exception {
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        Thread[] workers = new Thread[clients];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int c = 0; c < clients; c++) {
+            workers[c] = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    Random random = new Random();
+                    while (System.nanoTime() < deadline) {
+                        int a = random.nextInt(counters);
+                        int b = (a + 1 + random.nextInt(counters - 1)) % counters;
+                        String[] keys = {prefix + a, prefix + b};
+                        long[] versions = new long[2];
+                        long[] values = new long[2];
+                        for (int i = 0; i < 2; i++) {
+                            out.writeByte(CMD_GETVERSION);
+                            out.writeUTF(keys[i]);
+                            out.flush();
+                            boolean found = in.readBoolean();
+                            versions[i] = in.readLong();
+                            if (found) {
+                                byte[] value = new byte[in.readInt()];
+                                in.readFully(value);
+                                values[i] = Long.parseLong(new String(value));
+                            }
+                        }
+                        out.writeByte(CMD_TXN);
+                        out.writeInt(2);
+                        for (int i = 0; i < 2; i++) {
+                            out.writeUTF(keys[i]);
+                            out.writeLong(versions[i]);
+                        }
+                        out.writeInt(2);
+                        for (int i = 0; i < 2; i++) {
+                            byte[] value = String.valueOf(values[i] + 1).getBytes();
+                            out.writeUTF(keys[i]);
+                            out.writeInt(value.length);
+                            out.write(value);
+                        }
+                        out.flush();
+                        boolean committed = in.readBoolean();
+                        in.readLong();
+                        (committed ? commits : aborts).increment();
+                    }
+                    out.writeByte(CMD_EXIT);
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[c].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // Cada commit incrementou exatamente 2 contadores: a soma tem de bater certo
+        long sum = 0;
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < counters; i++) {
+                out.writeByte(CMD_GET);
+                out.writeUTF(prefix + i);
+                if (in.readBoolean()) {
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    sum += Long.parseLong(new String(value));
+                }
+            }
+            out.writeByte(CMD_EXIT);
+        }
+
+        double seconds = millis / 1000.0;
+        long attempts = commits.sum() + aborts.sum();
+        console.printf("%-10d %12.0f %12.0f %11.1f%% %14.0f %10s%n", counters,
+                commits.sum() / seconds, aborts.sum() / seconds,
+                100.0 * aborts.sum() / Math.max(1, attempts), attempts / seconds,
+                sum == 2 * commits.sum() ? "sim" : "NÃO (" + sum + ")");
+    }
+
+    // ---- dedup ----
+
+    private static void runDedupBenchmark(int keys) {
+        byte[][] values = new byte[5][1024];
+        Random random = new Random(42);
+        for (byte[] value : values) {
+            random.nextBytes(value);
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            console.println("Chaves: " + keys + ", 5 valores distintos de 1 KiB (como o ClientBatch)");
+            for (String threshold : new String[]{null, "256"}) {
+                if (threshold == null) {
+                    System.clearProperty("sd.dedup.threshold");
+                } else {
+                    System.setProperty("sd.dedup.threshold", threshold);
+                }
+                // Aquecimento com o mesmo volume
+                runDedupRound(keys, values);
+                Server server = new Server(1);
+                long heapBefore = usedHeap();
+                long start = System.nanoTime();
+                for (int i = 0; i < keys; i++) {
+                    server.put("key" + i, values[i % values.length].clone(), server.getAccount(""));
+                }
+                long elapsed = System.nanoTime() - start;
+                long retained = usedHeap() - heapBefore;
+
+                console.printf("%-16s %10.0f PUTs/s  heap retido ~%d KiB%n",
+                        threshold == null ? "sem dedup" : "dedup >= " + threshold,
+                        keys / (elapsed / 1e9), retained / 1024);
+                if (threshold != null) {
+                    for (String line : server.statsReport().split("\n")) {
+                        if (line.startsWith("Deduplicação")) {
+                            console.println("  " + line);
+                        }
+                    }
+                }
+                server.get("key0");
+            }
+        } finally {
+            System.clearProperty("sd.dedup.threshold");
+            System.setOut(console);
+        }
+    }
+
+    private static void runDedupRound(int keys, byte[][] values) {
+        Server server = new Server(1);
+        for (int i = 0; i < keys; i++) {
+            server.put("key" + i, values[i % values.length].clone(), server.getAccount(""));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Arranca um servidor neste processo numa porta livre e devolve a porta. */
+    // ---- batch ----
+
+    private static void runBatchBenchmark(int keys) throws Exception {
+        byte[][] values = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            values[i] = ("valor-" + i + "-").repeat(64).getBytes();
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("sd.compression.threshold", "256");
+        try {
+            console.println("Lote de " + keys + " chaves, valores de ~1 KiB comprimidos no servidor, "
+                    + Runtime.getRuntime().availableProcessors() + " CPUs (mediana de 5)");
+            console.printf("%-12s %14s %14s %16s %14s%n",
+                    "servidor", "MULTIPUT ms", "MULTIGET ms", "em blocos: 1º ms", "total ms");
+            for (String threshold : new String[]{String.valueOf(Integer.MAX_VALUE), "1024"}) {
+                System.setProperty("sd.batch.threshold", threshold);
+                int port = startServer(2);
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    long[] put = new long[5];
+                    long[] get = new long[5];
+                    long[] first = new long[5];
+                    long[] streamed = new long[5];
+                    for (int round = 0; round < 7; round++) {
+                        int r = Math.max(0, round - 2);  // 2 rondas de aquecimento
+                        long start = System.nanoTime();
+                        out.writeByte(CMD_MULTIPUT);
+                        out.writeInt(keys);
+                        for (int i = 0; i < keys; i++) {
+                            out.writeUTF("key" + i);
+                            out.writeInt(values[i].length);
+                            out.write(values[i]);
+                        }
+                        out.flush();
+                        in.readBoolean();
+                        put[r] = System.nanoTime() - start;
+
+                        start = System.nanoTime();
+                        writeMultiGet(out, keys);
+                        int found = in.readInt();
+                        for (int i = 0; i < found; i++) {
+                            in.readUTF();
+                            in.skipBytes(in.readInt());
+                        }
+                        get[r] = System.nanoTime() - start;
+
+                        out.writeByte(CMD_FEATURES);
+                        out.writeInt(FEATURE_STREAMING);
+                        out.flush();
+                        in.readInt();
+                        start = System.nanoTime();
+                        writeMultiGet(out, keys);
+                        first[r] = 0;
+                        while ((found = in.readInt()) >= 0) {
+                            if (first[r] == 0) {
+                                first[r] = System.nanoTime() - start;
+                            }
+                            for (int i = 0; i < found; i++) {
+                                in.readUTF();
+                                in.skipBytes(in.readInt());
+                            }
+                        }
+                        streamed[r] = System.nanoTime() - start;
+                        out.writeByte(CMD_FEATURES);
+                        out.writeInt(0);
+                        out.flush();
+                        in.readInt();
+                    }
+                    console.printf("%-12s %14.1f %14.1f %16.1f %14.1f%n",
+                            threshold.equals("1024") ? "paralelo" : "sequencial",
+                            median(put) / 1e6, median(get) / 1e6, median(first) / 1e6, median(streamed) / 1e6);
+                    out.writeByte(CMD_EXIT);
+                    out.flush();
+                }
+            }
+        } finally {
+            System.clearProperty("sd.compression.threshold");
+            System.clearProperty("sd.batch.threshold");
+            System.setOut(console);
+        }
+    }
+
+    private static void writeMultiGet(DataOutputStream out, int keys) throws IOException {
+        out.writeByte(CMD_MULTIGET);
+        out.writeInt(keys);
+        for (int i = 0; i < keys; i++) {
+            out.writeUTF("key" + i);
+        }
+        out.flush();
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // ---- cdc ----
+
+    private static void runChangeFeedBenchmark(int puts) throws Exception {
+        byte[] value = new byte[100];
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            console.println("PUTs de 100 bytes em 1000 chaves, chamadas diretas ao Server (mediana de 5)");
+            for (String capacity : new String[]{null, "65536"}) {
+                if (capacity == null) {
+                    System.clearProperty("sd.cdc.capacity");
+                } else {
+                    System.setProperty("sd.cdc.capacity", capacity);
+                }
+                long[] samples = new long[5];
+                for (int round = 0; round < 7; round++) {
+                    Server server = new Server(1);
+                    UserAccount account = server.getAccount("");
+                    long start = System.nanoTime();
+                    for (int i = 0; i < puts; i++) {
+                        server.put("key" + (i % 1000), value, account);
+                    }
+                    samples[Math.max(0, round - 2)] = System.nanoTime() - start;
+                }
+                console.printf("%-22s %8.0f ns/PUT%n",
+                        capacity == null ? "sem feed" : "feed de " + capacity, (double) median(samples) / puts);
+            }
+
+            // Consumidor pela rede: recupera o anel todo e depois acompanha um escritor
+            int port = startServer(4);
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeByte(CMD_MULTIPUT);
+                out.writeInt(1000);
+                for (int i = 0; i < 1000; i++) {
+                    out.writeUTF("key" + i);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                out.flush();
+                in.readBoolean();
+                for (int batch = 0; batch < 65; batch++) {
+                    out.writeByte(CMD_MULTIPUT);
+                    out.writeInt(1000);
+                    for (int i = 0; i < 1000; i++) {
+                        out.writeUTF("key" + i);
+                        out.writeInt(value.length);
+                        out.write(value);
+                    }
+                }
+                out.flush();
+                for (int batch = 0; batch < 65; batch++) {
+                    in.readBoolean();
+                }
+
+                for (int batchSize : new int[]{16, 256, 1024}) {
+                    long from = 1;
+                    long events = 0;
+                    int fetches = 0;
+                    long start = System.nanoTime();
+                    while (true) {
+                        out.writeByte(CMD_CHANGES);
+                        out.writeLong(from);
+                        out.writeInt(batchSize);
+                        out.writeInt(0);
+                        out.flush();
+                        from = in.readLong();
+                        int count = in.readInt();
+                        fetches++;
+                        if (count <= 0) {
+                            break;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            in.readLong();
+                            in.readLong();
+                            in.readUTF();
+                            in.skipBytes(in.readInt());
+                        }
+                        events += count;
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    console.printf("recuperação, lotes de %4d: %7d eventos em %4d pedidos, %9.0f eventos/s%n",
+                            batchSize, events, fetches, events / seconds);
+                }
+                out.writeByte(CMD_EXIT);
+                out.flush();
+            }
+        } finally {
+            System.clearProperty("sd.cdc.capacity");
+            System.setOut(console);
+        }
+    }
+
+    // ---- protocol ----
+
+    /**
+     * Chaves curtas ("k0".."k9999") e valores de 16 bytes: 40% PUT, 40% GET, 10% GETVERSION e
+     * 10% MULTIGET de 4 chaves, codificados com o FrameCodec em v1 e em v2. Os bytes por pedido
+     * e por resposta são os que passam no socket de um servidor real, servidos pelo ClientHandler.
+     */
+    private static void runProtocolBenchmark(int requests) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            int socketRequests = Math.min(requests, 100000);
+            console.println("Pedidos: " + requests + " (40% PUT de 16 bytes, 40% GET, 10% GETVERSION,"
+                    + " 10% MULTIGET de 4 chaves; chaves de 2-5 caracteres)");
+            console.println("Bytes e pedidos/s pelo servidor em loopback TCP, janelas de 64 pedidos ("
+                    + socketRequests + " pedidos, mediana de 5); descodificação só do FrameCodec (mediana de 9)");
+            int[][] boundaries = new int[2][];
+            byte[][] inputs = new byte[2][];
+            for (int v = 0; v < 2; v++) {
+                boundaries[v] = new int[requests];
+                inputs[v] = encodeProtocolRequests(v == 1, requests, boundaries[v]);
+            }
+            for (int round = 0; round < 3; round++) {
+                decodeProtocolRequests(false, inputs[0], requests);
+                decodeProtocolRequests(true, inputs[1], requests);
+            }
+            // Rondas alternadas entre as versões, para que o JIT e o GC afetem ambas por igual
+            long[][] decode = new long[2][9];
+            for (int round = 0; round < 9; round++) {
+                for (int v = 0; v < 2; v++) {
+                    decode[v][round] = decodeProtocolRequests(v == 1, inputs[v], requests);
+                }
+            }
+
+            // Janelas de 64 pedidos para que o tamanho conte mais do que as syscalls. A partir da
+            // segunda ronda o storage tem as mesmas chaves para as duas versões
+            int port = startServer(4);
+            long[][] samples = new long[2][7];
+            long[][] bytes = new long[2][];
+            for (int round = 0; round < 7; round++) {
+                // A segunda ligação de cada ronda é mais rápida: a ordem também alterna
+                for (int i = 0; i < 2; i++) {
+                    int v = (round + i) % 2;
+                    long[] r = runProtocolOverSocket(port, v == 1, inputs[v], boundaries[v], socketRequests);
+                    samples[v][round] = r[0];
+                    bytes[v] = r;
+                }
+            }
+            console.printf("%-10s %12s %12s %14s %12s%n", "protocolo", "pedido B", "resposta B",
+                    "descod. ns", "pedidos/s");
+            for (int v = 0; v < 2; v++) {
+                console.printf("%-10s %12.2f %12.2f %14.1f %12.0f%n", v == 1 ? "v2" : "v1",
+                        (double) bytes[v][1] / socketRequests, (double) bytes[v][2] / socketRequests,
+                        (double) median(decode[v]) / requests,
+                        socketRequests / (median(Arrays.copyOfRange(samples[v], 2, 7)) / 1e9));
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static byte[] encodeProtocolRequests(boolean compact, int requests, int[] boundaries)
+            throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        BufferPool pool = new BufferPool(FrameCodec.BUFFER_SIZE, 2);
+        FrameCodec codec = new FrameCodec(InputStream.nullInputStream(), encoded, pool);
+        codec.setCompact(compact);
+        byte[] value = new byte[16];
+        Arrays.fill(value, (byte) 'v');
+        Random random = new Random(42);
+        for (int i = 0; i < requests; i++) {
+            int op = random.nextInt(10);
+            if (op < 4) {
+                codec.writeByte(CMD_PUT);
+                codec.writeKey("k" + random.nextInt(10000));
+                codec.writeValue(value);
+            } else if (op < 8) {
+                codec.writeByte(CMD_GET);
+                codec.writeKey("k" + random.nextInt(10000));
+            } else if (op < 9) {
+                codec.writeByte(CMD_GETVERSION);
+                codec.writeKey("k" + random.nextInt(10000));
+            } else {
+                codec.writeByte(CMD_MULTIGET);
+                codec.writeCount(4);
+                for (int k = 0; k < 4; k++) {
+                    codec.writeKey("k" + random.nextInt(10000));
+                }
+            }
+            codec.flush();
+            boundaries[i] = encoded.size();
+        }
+        codec.release();
+        return encoded.toByteArray();
+    }
+
+    /** Só descodifica os pedidos, com as mesmas chamadas do ClientHandler. Devolve os nanos. */
+    private static long decodeProtocolRequests(boolean compact, byte[] input, int requests) throws IOException {
+        BufferPool pool = new BufferPool(FrameCodec.BUFFER_SIZE, 2);
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(input), OutputStream.nullOutputStream(), pool);
+        codec.setCompact(compact);
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            byte command = codec.readByte();
+            if (command == CMD_MULTIGET) {
+                int count = codec.readCount();
+                for (int k = 0; k < count; k++) {
+                    checksum += codec.readKey().length();
+                }
+            } else {
+                checksum += codec.readKey().length();
+                if (command == CMD_PUT) {
+                    checksum += codec.readValue().length;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        codec.release();
+        if (checksum == 0) {
+            throw new IllegalStateException();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Envia os pedidos já codificados a um servidor real e lê as respostas, sem contar a negociação.
+     * Devolve {nanos, bytes enviados, bytes recebidos}.
+     */
+    private static long[] runProtocolOverSocket(int port, boolean compact, byte[] input, int[] boundaries,
+                                                int requests) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), FrameCodec.BUFFER_SIZE);
+            BufferPool pool = new BufferPool(FrameCodec.BUFFER_SIZE, 2);
+            FrameCodec codec = new FrameCodec(socket.getInputStream(), out, pool);
+            if (compact) {
+                codec.writeByte(CMD_HELLO);
+                codec.writeByte((byte) 2);
+                codec.flush();
+                if (codec.readByte() != 2) {
+                    throw new IOException("O servidor não aceitou a v2");
+                }
+                codec.setCompact(true);
+            }
+            long received = codec.getBytesConsumed();
+            long start = System.nanoTime();
+            int from = 0;
+            for (int window = 0; window < requests; window += 64) {
+                int end = Math.min(requests, window + 64);
+                out.write(input, from, boundaries[end - 1] - from);
+                out.flush();
+                for (int i = window; i < end; i++) {
+                    readProtocolReply(codec, input[from]);
+                    from = boundaries[i];
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            received = codec.getBytesConsumed() - received;
+            codec.writeByte(CMD_EXIT);
+            codec.flush();
+            codec.release();
+            return new long[]{elapsed, boundaries[requests - 1], received};
+        }
+    }
+
+    private static void readProtocolReply(FrameCodec codec, byte command) throws IOException {
+        boolean compact = codec.isCompact();
+        if (command == CMD_MULTIGET) {
+            if (compact && codec.readByte() != 0) {
+                return;
+            }
+            int found = codec.readCount();
+            for (int k = 0; k < found; k++) {
+                codec.readKey();
+                codec.readValue();
+            }
+            return;
+        }
+        boolean ok = compact ? codec.readByte() == 0 : codec.readBoolean();
+        if (command == CMD_GETVERSION && (ok || !compact)) {
+            codec.readNumber();
+        }
+        if (ok && command != CMD_PUT) {
+            codec.readValue();
+        }
+    }
+
+    // ---- login ----
+
+    private static void runLoginBenchmark(int threads) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("sd.users.file", "");
+        try {
+            int port = startServer(2 * threads + 2);
+            byte[] token;
+            try (Socket socket = new Socket("localhost", port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeByte(CMD_REGISTER);
+                out.writeUTF("bench");
+                out.writeUTF("password");
+                in.readBoolean();
+                out.writeByte(CMD_FEATURES);
+                out.writeInt(FEATURE_SESSION_TOKEN);
+                in.readInt();
+                out.writeByte(CMD_LOGIN);
+                out.writeUTF("bench");
+                out.writeUTF("password");
+                in.readBoolean();
+                token = new byte[in.readInt()];
+                in.readFully(token);
+                out.writeByte(CMD_EXIT);
+            }
+
+            console.println("Threads de dados: " + threads + " (PUT/GET), threads de login: " + threads
+                    + ", cada login numa ligação nova (3 s por ronda)");
+            console.printf("%-22s %12s %14s%n", "ronda", "logins/s", "PUT+GET/s");
+            double[] round = runLoginRound(port, 0, threads, null, 3000);
+            console.printf("%-22s %12s %14.0f%n", "só dados", "-", round[1]);
+            round = runLoginRound(port, threads, threads, null, 3000);
+            console.printf("%-22s %12.0f %14.0f%n", "LOGIN (PBKDF2)", round[0], round[1]);
+            round = runLoginRound(port, threads, threads, token, 3000);
+            console.printf("%-22s %12.0f %14.0f%n", "RESUME (token)", round[0], round[1]);
+            round = runLoginRound(port, threads, 0, token, 3000);
+            console.printf("%-22s %12.0f %14s%n", "RESUME sem carga", round[0], "-");
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /** Devolve {logins/s, operações de dados/s}; token != null usa CMD_RESUME em vez de LOGIN. */
+    private static double[] runLoginRound(int port, int loginThreads, int dataThreads, byte[] token,
+                                          long millis) throws Exception {
+        LongAdder logins = new LongAdder();
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < loginThreads; t++) {
+            workers.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        try (Socket socket = new Socket("localhost", port)) {
+                            socket.setTcpNoDelay(true);
+                            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                            DataInputStream in = new DataInputStream(socket.getInputStream());
+                            if (token == null) {
+                                out.writeByte(CMD_LOGIN);
+                                out.writeUTF("bench");
+                                out.writeUTF("password");
+                            } else {
+                                out.writeByte(CMD_RESUME);
+                                out.writeInt(token.length);
+                                out.write(token);
+                            }
+                            out.flush();
+                            if (in.readBoolean()) {
+                                logins.increment();
+                            }
+                            out.writeByte(CMD_EXIT);
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        for (int t = 0; t < dataThreads; t++) {
+            String key = "data" + t;
+            workers.add(new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    byte[] value = new byte[64];
+                    while (System.nanoTime() < deadline) {
+                        out.writeByte(CMD_PUT);
+                        out.writeUTF(key);
+                        out.writeInt(value.length);
+                        out.write(value);
+                        out.writeByte(CMD_GET);
+                        out.writeUTF(key);
+                        out.flush();
+                        in.readBoolean();
+                        if (in.readBoolean()) {
+                            in.skipBytes(in.readInt());
+                        }
+                        operations.add(2);
+                    }
+                    out.writeByte(CMD_EXIT);
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = millis / 1000.0;
+        return new double[]{logins.sum() / seconds, operations.sum() / seconds};
+    }
+
+    private static int startServer(int maxSessions) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(maxSessions, port);
+        Thread thread = new Thread(server::start, "server");
+        thread.setDaemon(true);
+        thread.start();
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(CMD_EXIT);
+                return port;
+            } catch (ConnectException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Simula um socket: cada read devolve no máximo o que resta do pedido atual. */
+    private static class SegmentedInputStream extends InputStream {
+        private final byte[] data;
+        private final int[] boundaries;
+        private int pos;
+        private int segment;
+
+        SegmentedInputStream(byte[] data, int[] boundaries) {
+            this.data = data;
+            this.boundaries = boundaries;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            while (segment < boundaries.length && boundaries[segment] <= pos) {
+                segment++;
+            }
+            int end = segment < boundaries.length ? boundaries[segment] : data.length;
+            int n = Math.min(len, end - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /** Conta as chamadas read ao stream subjacente (num socket, cada uma é uma syscall). */
+    private static class CountingInputStream extends FilterInputStream {
+        long calls;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            calls++;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            calls++;
+            return in.read(b, off, len);
+        }
+    }
+
+    /** Conta as chamadas write ao stream subjacente (num socket, cada uma é uma syscall). */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long calls;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            calls++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            calls++;
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feed de alterações (CDC): cada escrita de uma chave recebe um número de sequência e fica num
+ * anel em memória com as últimas {@code capacity} alterações, ativado com -Dsd.cdc.capacity=N.
+ *
+ * append e publish são chamados com o write lock do storage, que já ordena as escritas: não há
+ * lock próprio. append só escreve no anel; publish, uma vez por commit, torna visíveis de uma vez
+ * todas as alterações do commit ao escrever o novo fim num campo volatile. Os consumidores leem
+ * sem lock e confirmam pelo número de sequência de cada evento que ele não foi entretanto substituído.
+ * Só quem espera por alterações novas usa o lock do feed.
+ */
+public class ChangeFeed {
+    // Intervalo máximo entre verificações de cancelamento de um consumidor em espera
+    private static final long CANCEL_CHECK_NANOS = 100_000_000L;
+
+    /** Alteração de uma chave; o valor é o objeto guardado no storage, sem cópia. */
+    public static class Event {
+        private final long sequence;
+        private final String key;
+        private final StoredValue value;
+
+        Event(long sequence, String key, StoredValue value) {
+            this.sequence = sequence;
+            this.key = key;
+            this.value = value;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public StoredValue getValue() {
+            return value;
+        }
+    }
+
+    private final Event[] ring;
+    // Fim publicado: próximo número de sequência visível (a primeira alteração tem o número 1)
+    private volatile long next;
+    // Próximo número de sequência a atribuir; só usado com o write lock do storage
+    private long tail;
+    private volatile int waiting;
+    private final Lock lock;
+    private final Condition appended;
+
+    private final LongAdder fetches;
+    private final LongAdder fetchedEvents;
+
+    public ChangeFeed(int capacity) {
+        this.ring = new Event[capacity];
+        this.next = 1;
+        this.tail = 1;
+        this.lock = new ReentrantLock();
+        this.appended = lock.newCondition();
+        this.fetches = new LongAdder();
+        this.fetchedEvents = new LongAdder();
+    }
+
+    /** Devolve null se o feed não estiver ativo. */
+    public static ChangeFeed fromProperties() {
+        int capacity = Integer.getInteger("sd.cdc.capacity", 0);
+        return capacity > 0 ? new ChangeFeed(capacity) : null;
+    }
+
+    /** Escreve a alteração no anel, ainda invisível aos consumidores. Requer o write lock do storage. */
+    public void append(String key, StoredValue value) {
+        long sequence = tail++;
+        ring[(int) (sequence % ring.length)] = new Event(sequence, key, value);
+    }
+
+    /** Publica as alterações escritas desde o último publish. Requer o write lock do storage. */
+    public void publish() {
+        if (next != tail) {
+            next = tail;
+        }
+    }
+
+    /** Acorda consumidores à espera; chamado depois de largar o write lock do storage. */
+    public void wakeConsumers() {
+        if (waiting == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNextSequence() {
+        return next;
+    }
+
+    /** Sequência mais antiga ainda no anel. */
+    public long getOldestSequence() {
+        return Math.max(1, next - ring.length);
+    }
+
+    /**
+     * Copia para {@code events} as alterações a partir de {@code from}, até {@code max} eventos ou
+     * somar {@code maxBytes} bytes de valores (pelo menos uma). Se {@code from} já saiu do anel,
+     * começa na mais antiga disponível: o consumidor deteta a falha pela sequência do primeiro
+     * evento. Sem alterações novas, espera até {@code waitMillis} ms, ou até {@code cancelled}
+     * indicar que o consumidor já não espera pela resposta. Devolve quantas copiou.
+     */
+    public int fetch(long from, Event[] events, int max, long maxBytes, long waitMillis,
+                     BooleanSupplier cancelled) throws InterruptedException {
+        fetches.increment();
+        if (next <= from && waitMillis > 0) {
+            awaitAppend(from, waitMillis, cancelled);
+        }
+        long end = next;
+        long sequence = Math.max(from, getOldestSequence());
+        int count = 0;
+        long bytes = 0;
+        while (sequence < end && count < max && (count == 0 || bytes < maxBytes)) {
+            Event event = ring[(int) (sequence % ring.length)];
+            if (event == null || event.sequence != sequence) {
+                // Substituído por uma escrita entretanto: salta para a mais antiga que ainda existe
+                sequence = Math.max(sequence + 1, getOldestSequence());
+                continue;
+            }
+            events[count++] = event;
+            bytes += event.value.getStoredData().length;
+            sequence++;
+        }
+        fetchedEvents.add(count);
+        return count;
+    }
+
+    private void awaitAppend(long from, long waitMillis, BooleanSupplier cancelled) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (next > from || remaining <= 0) {
+                return;
+            }
+            awaitSlice(from, Math.min(remaining, CANCEL_CHECK_NANOS));
+            // A verificação pode fazer E/S: é feita fora do lock
+            if (next <= from && cancelled != null && cancelled.getAsBoolean()) {
+                return;
+            }
+        }
+    }
+
+    private void awaitSlice(long from, long nanos) throws InterruptedException {
+        lock.lock();
+        waiting++;
+        try {
+            while (next <= from && nanos > 0) {
+                nanos = appended.awaitNanos(nanos);
+            }
+        } finally {
+            waiting--;
+            lock.unlock();
+        }
+    }
+
+    public String report() {
+        return "Feed de alterações: sequências " + getOldestSequence() + ".." + (next - 1)
+                + " (capacidade " + ring.length + ") pedidos=" + fetches.sum()
+                + " eventos_enviados=" + fetchedEvents.sum() + " à_espera=" + waiting;
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Client {
     private Socket socket;
@@ -8,6 +10,11 @@ public class Client {
     private DataOutputStream out;
     private boolean isConnected;
     private boolean isAuthenticated;
+    private boolean compression;
+    private boolean sessionTokens;
+    private byte[] sessionToken;
+    private String host;
+    private int port;
     private Scanner scanner;
 
     // Protocolo de comunicação
@@ -19,6 +26,14 @@ public class Client {
     private static final byte CMD_MULTIPUT = 6;
     private static final byte CMD_MULTIGET = 7;
     private static final byte CMD_GETWHEN = 8;
+    private static final byte CMD_STATS = 9;
+    private static final byte CMD_DEADLINE = 10;
+    private static final byte CMD_FEATURES = 13;
+    private static final byte CMD_RESUME = 14;
+
+    private static final int FEATURE_COMPRESSION = 1;
+    private static final int FEATURE_SESSION_TOKEN = 2;
+    private static final byte ENCODING_DEFLATE = 1;
 
     public Client(String host, int port) throws IOException {
         connect(host, port);
@@ -27,10 +42,37 @@ public class Client {
     }
 
     private void connect(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
         socket = new Socket(host, port);
         in = new DataInputStream(socket.getInputStream());
         out = new DataOutputStream(socket.getOutputStream());
         isConnected = true;
+
+        // Pede os valores comprimidos tal como estão guardados no servidor
+        // e um token para retomar a sessão se a ligação cair
+        out.writeByte(CMD_FEATURES);
+        out.writeInt(FEATURE_COMPRESSION | FEATURE_SESSION_TOKEN);
+        int accepted = in.readInt();
+        compression = (accepted & FEATURE_COMPRESSION) != 0;
+        sessionTokens = (accepted & FEATURE_SESSION_TOKEN) != 0;
+    }
+
+    /** Volta a ligar ao servidor e retoma a sessão com o token do último login. */
+    private boolean reconnect() {
+        if (sessionToken == null) {
+            return false;
+        }
+        try {
+            if (socket != null) socket.close();
+            connect(host, port);
+            out.writeByte(CMD_RESUME);
+            out.writeInt(sessionToken.length);
+            out.write(sessionToken);
+            return in.readBoolean();
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     public void start() {
@@ -109,31 +151,42 @@ public class Client {
             System.out.println("3. MULTI PUT");
             System.out.println("4. MULTI GET");
             System.out.println("5. GET WHEN");
-            System.out.println("6. Sair");
+            System.out.println("6. Estatísticas");
+            System.out.println("7. Sair");
             System.out.print("Escolha uma opção: ");
 
             String choice = scanner.nextLine();
-            switch (choice) {
-                case "1":
-                    handlePut();
-                    break;
-                case "2":
-                    handleGet();
-                    break;
-                case "3":
-                    handleMultiPut();
-                    break;
-                case "4":
-                    handleMultiGet();
-                    break;
-                case "5":
-                    handleGetWhen();
-                    break;
-                case "6":
-                    logout();
-                    break;
-                default:
-                    System.out.println("Opção inválida!");
+            try {
+                switch (choice) {
+                    case "1":
+                        handlePut();
+                        break;
+                    case "2":
+                        handleGet();
+                        break;
+                    case "3":
+                        handleMultiPut();
+                        break;
+                    case "4":
+                        handleMultiGet();
+                        break;
+                    case "5":
+                        handleGetWhen();
+                        break;
+                    case "6":
+                        handleStats();
+                        break;
+                    case "7":
+                        logout();
+                        break;
+                    default:
+                        System.out.println("Opção inválida!");
+                }
+            } catch (IOException e) {
+                if (!reconnect()) {
+                    throw e;
+                }
+                System.out.println("Ligação perdida; sessão retomada, repita a operação.");
             }
         }
     }
@@ -205,8 +258,11 @@ public class Client {
         System.out.print("Digite o valor condicional (em bytes): ");
         String valueCondStr = scanner.nextLine();
         byte[] valueCond = valueCondStr.getBytes();
+        System.out.print("Tempo máximo de espera em segundos (vazio = sem limite): ");
+        String timeoutStr = scanner.nextLine().trim();
+        int timeoutMillis = timeoutStr.isEmpty() ? 0 : Integer.parseInt(timeoutStr) * 1000;
 
-        byte[] result = getWhen(key, keyCond, valueCond);
+        byte[] result = getWhen(key, keyCond, valueCond, timeoutMillis);
         if (result != null) {
             System.out.println("Valor encontrado: " + new String(result));
         } else {
@@ -214,6 +270,11 @@ public class Client {
         }
     }
 
+    private void handleStats() throws IOException {
+        System.out.println("\n=== Uso por utilizador ===");
+        System.out.print(stats());
+    }
+
 
     private boolean register(String username, String password) throws IOException {
         if (!isConnected) throw new IOException("Not connected to server");
@@ -230,7 +291,12 @@ public class Client {
         out.writeByte(CMD_LOGIN);
         out.writeUTF(username);
         out.writeUTF(password);
-        return in.readBoolean();
+        boolean success = in.readBoolean();
+        if (success && sessionTokens) {
+            sessionToken = new byte[in.readInt()];
+            in.readFully(sessionToken);
+        }
+        return success;
     }
 
     private void put(String key, byte[] value) throws IOException {
@@ -255,10 +321,7 @@ public class Client {
         out.writeUTF(key);
 
         if (in.readBoolean()) {
-            int length = in.readInt();
-            byte[] value = new byte[length];
-            in.readFully(value);
-            return value;
+            return readValue();
         }
         return null;
     }
@@ -297,18 +360,19 @@ public class Client {
         int numFound = in.readInt();
         for (int i = 0; i < numFound; i++) {
             String key = in.readUTF();
-            int length = in.readInt();
-            byte[] value = new byte[length];
-            in.readFully(value);
-            result.put(key, value);
+            result.put(key, readValue());
         }
         return result;
     }
 
-    private byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException {
+    private byte[] getWhen(String key, String keyCond, byte[] valueCond, int timeoutMillis) throws IOException {
         if (!isConnected || !isAuthenticated)
             throw new IOException("Not connected or not authenticated");
 
+        if (timeoutMillis > 0) {
+            out.writeByte(CMD_DEADLINE);
+            out.writeInt(timeoutMillis);
+        }
         out.writeByte(CMD_GETWHEN);
         out.writeUTF(key);
         out.writeUTF(keyCond);
@@ -318,15 +382,56 @@ public class Client {
         // Recebe a resposta do servidor
         boolean success = in.readBoolean();
         if (success) {
-            int resultLength = in.readInt();
-            byte[] result = new byte[resultLength];
-            in.readFully(result);
-            return result;
+            return readValue();
         } else {
             return null;
         }
     }
 
+    /** Lê um valor de uma resposta, descomprimindo-o se o servidor o enviou comprimido. */
+    private byte[] readValue() throws IOException {
+        byte encoding = compression ? in.readByte() : 0;
+        int rawLength = encoding == ENCODING_DEFLATE ? in.readInt() : 0;
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        if (encoding != ENCODING_DEFLATE) {
+            return value;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(value);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("Valor comprimido truncado");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Valor comprimido inválido", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private String stats() throws IOException {
+        if (!isConnected || !isAuthenticated)
+            throw new IOException("Not connected or not authenticated");
+
+        out.writeByte(CMD_STATS);
+        int length = in.readInt();
+        byte[] report = new byte[length];
+        in.readFully(report);
+        return new String(report, "UTF-8");
+    }
+
 
     private void logout() throws IOException {
         out.writeByte(CMD_EXIT);
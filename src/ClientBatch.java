@@ -14,6 +14,9 @@ public class ClientBatch {
     private static final byte CMD_MULTIPUT = 6;
     private static final byte CMD_MULTIGET = 7;
     private static final byte CMD_GETWHEN = 8;
+    private static final byte CMD_GETVERSION = 11;
+    private static final byte CMD_TXN = 12;
+    private static final byte CMD_CHANGES = 15;
 
     // Número máximo de iterações para evitar loop infinito
     private static final int MAX_ITERATIONS = 99999999;
@@ -22,6 +25,8 @@ public class ClientBatch {
         if (args.length < 2) {
             System.out.println("Modo de execução e operação não fornecidos.");
             System.out.println("Uso: java ClientBatch <modo> <operação>");
+            System.out.println("     java ClientBatch replay <ficheiro de trace> [original|max|<fator>]");
+            System.out.println("     java ClientBatch tail <sequência inicial>");
             return;
         }
 
@@ -30,6 +35,10 @@ public class ClientBatch {
 
         if ("batch".equalsIgnoreCase(mode)) {
             executeBatchMode(operation);
+        } else if ("tail".equalsIgnoreCase(mode)) {
+            executeTailMode(Long.parseLong(operation));
+        } else if ("replay".equalsIgnoreCase(mode)) {
+            executeReplayMode(operation, args.length > 2 ? args[2] : "original");
         } else {
             System.out.println("Modo desconhecido: " + mode);
         }
@@ -71,6 +80,10 @@ public class ClientBatch {
                             performMultiPutOperation(out, in, keys, values, random);
                             break;
 
+                        case "txn":
+                            performTxnOperation(out, in, keys, random);
+                            break;
+
                         default:
                             System.out.println("Operação desconhecida: " + operation);
                             return;
@@ -93,6 +106,75 @@ public class ClientBatch {
         }
     }
 
+    /**
+     * Acompanha o feed de alterações do servidor (-Dsd.cdc.capacity) a partir de uma sequência,
+     * em lotes de até 256 alterações.
+     */
+    private static void executeTailMode(long from) {
+        try (Socket socket = new Socket(HOST, PORT);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            while (true) {
+                out.writeByte(CMD_CHANGES);
+                out.writeLong(from);
+                out.writeInt(256);
+                out.writeInt(5000);
+                out.flush();
+
+                long next = in.readLong();
+                int count = in.readInt();
+                if (count < 0) {
+                    System.out.println("O feed de alterações não está ativo no servidor.");
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    long sequence = in.readLong();
+                    long version = in.readLong();
+                    String key = in.readUTF();
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    if (sequence != from) {
+                        System.out.println("Alterações " + from + ".." + (sequence - 1) + " perdidas (já saíram do feed)");
+                    }
+                    System.out.println(sequence + ": " + key + " = " + new String(value) + " (versão " + version + ")");
+                    from = sequence + 1;
+                }
+                from = next;
+            }
+        } catch (IOException e) {
+            System.err.println("Erro ao ler o feed de alterações: " + e.getMessage());
+        }
+    }
+
+    /** Reproduz um trace capturado com -Dsd.trace.file no servidor. */
+    private static void executeReplayMode(String file, String speedArg) {
+        double speed;
+        if ("max".equalsIgnoreCase(speedArg)) {
+            speed = 0;
+        } else if ("original".equalsIgnoreCase(speedArg)) {
+            speed = 1;
+        } else {
+            try {
+                speed = Double.parseDouble(speedArg);
+            } catch (NumberFormatException e) {
+                speed = -1;
+            }
+            if (!(speed > 0)) {
+                System.out.println("Velocidade inválida: " + speedArg);
+                return;
+            }
+        }
+
+        try {
+            new TraceReplay(HOST, PORT, speed).run(file);
+        } catch (IOException e) {
+            System.err.println("Erro ao reproduzir o trace: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void performPutOperation(DataOutputStream out, DataInputStream in,
                                             List<String> keys, List<byte[]> values, Random random) throws IOException {
         String randomKeyPut = keys.get(random.nextInt(keys.size()));
@@ -188,6 +270,54 @@ public class ClientBatch {
         }
     }
 
+    /** Troca os valores de duas chaves numa transação otimista. */
+    private static void performTxnOperation(DataOutputStream out, DataInputStream in,
+                                            List<String> keys, Random random) throws IOException {
+        String first = keys.get(random.nextInt(keys.size()));
+        String second = keys.get(random.nextInt(keys.size()));
+        while (second.equals(first)) {
+            second = keys.get(random.nextInt(keys.size()));
+        }
+
+        long[] versions = new long[2];
+        byte[][] read = new byte[2][];
+        String[] readKeys = {first, second};
+        for (int i = 0; i < 2; i++) {
+            out.writeByte(CMD_GETVERSION);
+            out.writeUTF(readKeys[i]);
+            out.flush();
+            boolean found = in.readBoolean();
+            versions[i] = in.readLong();
+            read[i] = new byte[0];
+            if (found) {
+                read[i] = new byte[in.readInt()];
+                in.readFully(read[i]);
+            }
+        }
+
+        out.writeByte(CMD_TXN);
+        out.writeInt(2);
+        for (int i = 0; i < 2; i++) {
+            out.writeUTF(readKeys[i]);
+            out.writeLong(versions[i]);
+        }
+        out.writeInt(2);
+        for (int i = 0; i < 2; i++) {
+            out.writeUTF(readKeys[i]);
+            out.writeInt(read[1 - i].length);
+            out.write(read[1 - i]);
+        }
+        out.flush();
+
+        boolean committed = in.readBoolean();
+        long version = in.readLong();
+        if (committed) {
+            System.out.println("Txn swap " + first + " <-> " + second + " confirmada, versão " + version);
+        } else {
+            System.out.println("Txn swap " + first + " <-> " + second + " abortada (conflito).");
+        }
+    }
+
     private static void sendExitCommand(DataOutputStream out, DataInputStream in) {
         try {
             out.writeByte(CMD_EXIT);
@@ -1,15 +1,38 @@
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
     private final Server server;
-    private DataInputStream in;
-    private DataOutputStream out;
+    private FrameCodec codec;
+    private UserAccount account;
+    private long requestStart;
+    // Prazo (System.nanoTime) do pedido atual e do próximo, definido por CMD_DEADLINE; 0 = sem prazo
+    private long deadline;
+    private long nextDeadline;
+    // Funcionalidades opcionais do protocolo aceites nesta sessão (CMD_FEATURES)
+    private int features;
+    // Motivo da última rejeição de admit(): STATUS_THROTTLED ou STATUS_EXPIRED
+    private byte rejection;
+
+    // Captura de comandos (TraceWriter); chaves e tamanhos do pedido atual
+    private final TraceWriter trace;
+    private final int connectionId;
+    private String[] traceKeys = new String[16];
+    private int[] traceSizes = new int[16];
+    private int traceCount;
+
+    // Arrays reutilizados entre pedidos MULTIPUT/MULTIGET
+    private String[] batchKeys = new String[16];
+    private byte[][] batchValues = new byte[16][];
+    private StoredValue[] batchResults = new StoredValue[16];
+    private String[] readKeys = new String[16];
+    private long[] readVersions = new long[16];
+    private ChangeFeed.Event[] changeEvents;
 
     private static final byte CMD_PUT = 1;
     private static final byte CMD_GET = 2;
@@ -19,26 +42,73 @@ public class ClientHandler implements Runnable {
     private static final byte CMD_MULTIPUT = 6;
     private static final byte CMD_MULTIGET = 7;
     private static final byte CMD_GETWHEN = 8;
-    
+    private static final byte CMD_STATS = 9;
+    private static final byte CMD_DEADLINE = 10;
+    private static final byte CMD_GETVERSION = 11;
+    private static final byte CMD_TXN = 12;
+    private static final byte CMD_FEATURES = 13;
+    private static final byte CMD_RESUME = 14;
+    private static final byte CMD_CHANGES = 15;
+    private static final byte CMD_HELLO = 16;
+
+    // Versão mais alta do protocolo suportada; a v1 é a usada por omissão, sem CMD_HELLO
+    private static final int PROTOCOL_VERSION = 2;
+
+    // Estado das respostas v2; em v1 só se distingue STATUS_OK (true) do resto (false)
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_NOT_FOUND = 1;
+    private static final byte STATUS_THROTTLED = 2;
+    private static final byte STATUS_EXPIRED = 3;
+    private static final byte STATUS_QUOTA = 4;
+    private static final byte STATUS_CONFLICT = 5;
+    private static final byte STATUS_DENIED = 6;
+    private static final byte STATUS_UNAVAILABLE = 7;
+    private static final byte STATUS_ERROR = 8;
+
+    // Limites de cada pedido CMD_CHANGES
+    private static final int MAX_CHANGES_PER_FETCH = 1024;
+    private static final long MAX_CHANGE_BYTES_PER_FETCH = 1024 * 1024;
+    private static final int MAX_CHANGES_WAIT_MS = 30_000;
+
+    // Respostas com valores levam um byte de codificação e, se comprimidos, o tamanho original
+    private static final int FEATURE_COMPRESSION = 1;
+    // Um LOGIN bem-sucedido responde também com um token de sessão para CMD_RESUME
+    private static final int FEATURE_SESSION_TOKEN = 2;
+    // A resposta ao MULTIGET é enviada em blocos (int encontradas + pares), terminados por -1
+    private static final int FEATURE_STREAMING = 4;
+    private static final int SUPPORTED_FEATURES = FEATURE_COMPRESSION | FEATURE_SESSION_TOKEN | FEATURE_STREAMING;
+
+    private static final byte ENCODING_RAW = 0;
+    private static final byte ENCODING_DEFLATE = 1;
+
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.account = server.getAccount("");
+        this.trace = server.getTraceWriter();
+        this.connectionId = server.nextConnectionId();
     }
 
     @Override
     public void run() {
     try {
-        
+
         if (!server.tryAcquireSession()) {
-            out.writeBoolean(false);  
+            socket.getOutputStream().write(0);
             return;
         }
 
         setupStreams();
-        
+
         while (true) {
-            byte command = in.readByte();
-            
+            byte command = codec.readByte();
+            requestStart = codec.getBytesConsumed() - 1;
+            long responseStart = codec.getBytesWritten();
+            deadline = nextDeadline;
+            nextDeadline = 0;
+            long arrival = trace != null ? System.nanoTime() : 0;
+            traceCount = 0;
+
             switch (command) {
                 case CMD_LOGIN:
                     handleLogin();
@@ -61,9 +131,39 @@ public class ClientHandler implements Runnable {
                 case CMD_GETWHEN:
                     handleGetWhen();
                     break;
+                case CMD_STATS:
+                    handleStats();
+                    break;
+                case CMD_DEADLINE:
+                    handleDeadline();
+                    break;
+                case CMD_GETVERSION:
+                    handleGetVersion();
+                    break;
+                case CMD_TXN:
+                    handleTransaction();
+                    break;
+                case CMD_FEATURES:
+                    handleFeatures();
+                    break;
+                case CMD_RESUME:
+                    handleResume();
+                    break;
+                case CMD_CHANGES:
+                    handleChanges();
+                    break;
+                case CMD_HELLO:
+                    handleHello();
+                    break;
                 case CMD_EXIT:
+                    recordTrace(command, arrival);
                     return;
             }
+            if (command != CMD_LOGIN && command != CMD_REGISTER && command != CMD_RESUME
+                    && command != CMD_DEADLINE && command != CMD_CHANGES && command != CMD_HELLO) {
+                recordTrace(command, arrival);
+            }
+            account.chargeResponse(codec.getBytesWritten() - responseStart);
         }
     } catch (IOException e) {
         System.err.println("Error handling client: " + e.getMessage());
@@ -75,126 +175,526 @@ public class ClientHandler implements Runnable {
 
 
     private void setupStreams() throws IOException {
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+        codec = new FrameCodec(socket.getInputStream(), socket.getOutputStream(), server.getBufferPool());
+    }
+
+    /**
+     * Aplica os limites do utilizador e o prazo ao pedido atual, já descodificado.
+     * Devolve false se o pedido deve ser rejeitado sem ser executado; o motivo fica em rejection.
+     */
+    private boolean admit() {
+        try {
+            if (!account.admit(codec.getBytesConsumed() - requestStart, deadline)) {
+                // Com DELAY o pedido só é recusado se a espera ultrapassar o prazo
+                rejection = account.getLimits().getPolicy() == UserLimits.Policy.REJECT
+                        ? STATUS_THROTTLED : STATUS_EXPIRED;
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejection = STATUS_EXPIRED;
+            return false;
+        }
+        if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+            account.recordExpired();
+            rejection = STATUS_EXPIRED;
+            return false;
+        }
+        return true;
+    }
+
+    /** Início de uma resposta: em v2 o byte de estado, em v1 um boolean. */
+    private void reply(byte status) throws IOException {
+        if (codec.isCompact()) {
+            codec.writeByte(status);
+        } else {
+            codec.writeBoolean(status == STATUS_OK);
+        }
+    }
+
+    /** Estado de respostas que em v1 começam logo pelos dados (contagens, texto); nada em v1. */
+    private void replyStatus(byte status) throws IOException {
+        if (codec.isCompact()) {
+            codec.writeByte(status);
+        }
+    }
+
+    /**
+     * Negociação da versão do protocolo: o cliente envia a versão mais alta que conhece e recebe
+     * a que vai ser usada. A resposta segue ainda a versão anterior; os pedidos seguintes já usam
+     * a nova. Clientes que nunca enviam CMD_HELLO ficam na v1.
+     */
+    private void handleHello() throws IOException {
+        int requested = codec.readByte() & 0xFF;
+        int accepted = Math.max(1, Math.min(requested, PROTOCOL_VERSION));
+        codec.writeByte((byte) accepted);
+        codec.setCompact(accepted >= 2);
+    }
+
+    /** Prefixo opcional: o pedido seguinte tem de começar a ser executado nos próximos N ms. */
+    private void handleDeadline() throws IOException {
+        int timeoutMillis = codec.readCount();
+        nextDeadline = System.nanoTime() + Math.max(0, timeoutMillis) * 1_000_000L;
+        if (nextDeadline == 0) {
+            nextDeadline = 1;
+        }
+    }
+
+    /** Acrescenta uma chave ao registo do pedido atual; size = -1 se nenhum valor foi enviado. */
+    private void trace(String key, int size) {
+        if (trace == null) {
+            return;
+        }
+        if (traceCount == traceKeys.length) {
+            traceKeys = Arrays.copyOf(traceKeys, traceCount * 2);
+            traceSizes = Arrays.copyOf(traceSizes, traceCount * 2);
+        }
+        traceKeys[traceCount] = key;
+        traceSizes[traceCount] = size;
+        traceCount++;
+    }
+
+    /**
+     * Credenciais (LOGIN/REGISTER/RESUME) não são capturadas; o prazo de CMD_DEADLINE também não,
+     * o replay usa o tempo de serviço registado no comando seguinte.
+     */
+    private void recordTrace(byte command, long arrival) {
+        if (trace == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        trace.record(new TraceRecord(trace.toTraceTime(arrival), connectionId, command,
+                Arrays.copyOf(traceKeys, traceCount), Arrays.copyOf(traceSizes, traceCount),
+                (now - arrival) / 1000));
+        Arrays.fill(traceKeys, 0, traceCount, null);
+    }
+
+    /**
+     * Chamado à medida que as entradas são descodificadas, nunca com a contagem anunciada pelo
+     * cliente: um pedido que diz trazer 2^31 pares não reserva memória para eles.
+     */
+    private void ensureBatchCapacity(int size) {
+        if (batchKeys.length < size) {
+            int capacity = Math.max(size, batchKeys.length * 2);
+            batchKeys = Arrays.copyOf(batchKeys, capacity);
+            batchValues = Arrays.copyOf(batchValues, capacity);
+            batchResults = Arrays.copyOf(batchResults, capacity);
+        }
+    }
+
+    /**
+     * Escreve um valor na resposta. Clientes que negociaram FEATURE_COMPRESSION recebem
+     * os bytes tal como estão guardados, sem descomprimir no servidor.
+     */
+    private void writeValue(StoredValue value) throws IOException {
+        if ((features & FEATURE_COMPRESSION) == 0) {
+            codec.writeValue(value.getData());
+        } else if (value.isCompressed()) {
+            codec.writeByte(ENCODING_DEFLATE);
+            codec.writeCount(value.getRawLength());
+            codec.writeValue(value.getStoredData());
+        } else {
+            codec.writeByte(ENCODING_RAW);
+            codec.writeValue(value.getStoredData());
+        }
+    }
+
+    private void handleFeatures() throws IOException {
+        int requested = codec.readCount();
+        if (!admit()) {
+            replyStatus(rejection);
+            if (!codec.isCompact()) {
+                codec.writeInt(features);
+            }
+            return;
+        }
+        features = requested & SUPPORTED_FEATURES;
+        replyStatus(STATUS_OK);
+        codec.writeCount(features);
     }
 
     private void handleLogin() throws IOException {
-        String username = in.readUTF();
-        String password = in.readUTF();
+        String username = codec.readKey();
+        String password = codec.readKey();
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
         boolean success = server.authenticateUser(username, password);
-        out.writeBoolean(success);
+        if (success) {
+            account = server.getAccount(username);
+        }
+        reply(success ? STATUS_OK : STATUS_DENIED);
+        if (success && (features & FEATURE_SESSION_TOKEN) != 0) {
+            codec.writeValue(server.issueSessionToken(username));
+        }
+    }
+
+    /** Retoma, com o token recebido num LOGIN anterior, a sessão de um utilizador. */
+    private void handleResume() throws IOException {
+        byte[] token = codec.readValue();
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
+        String username = server.resumeSession(token);
+        if (username != null) {
+            account = server.getAccount(username);
+        }
+        reply(username != null ? STATUS_OK : STATUS_DENIED);
     }
 
     private void handleRegister() throws IOException {
-        String username = in.readUTF();
-        String password = in.readUTF();
-        boolean success = server.registerUser(username, password);
-        out.writeBoolean(success);
+        String username = codec.readKey();
+        String password = codec.readKey();
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
+        // O nome já existe
+        reply(server.registerUser(username, password) ? STATUS_OK : STATUS_CONFLICT);
     }
 
     private void handlePut() throws IOException {
-        String key = in.readUTF();
-        int valueLength = in.readInt();
-        byte[] value = new byte[valueLength];
-        in.readFully(value);
-        
-        server.put(key, value);
-        out.writeBoolean(true);
+        String key = codec.readKey();
+        byte[] value = codec.readValue();
+        trace(key, value.length);
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
+
+        reply(server.put(key, value, account) ? STATUS_OK : STATUS_QUOTA);
     }
 
     private void handleGet() throws IOException {
-        String key = in.readUTF();
-        byte[] value = server.get(key);
-        
+        String key = codec.readKey();
+        trace(key, -1);
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
+        StoredValue value = server.getVersioned(key);
+
         if (value != null) {
-            out.writeBoolean(true);
-            out.writeInt(value.length);
-            out.write(value);
+            reply(STATUS_OK);
+            writeValue(value);
         } else {
-            out.writeBoolean(false);
+            reply(STATUS_NOT_FOUND);
         }
     }
 
     private void handleMultiPut() throws IOException {
-    try {
-        int numberOfPairs = in.readInt();
-        Map<String, byte[]> pairs = new HashMap<>();
-        
-
+        int numberOfPairs = codec.readCount();
+        if (numberOfPairs < 0) {
+            throw new IOException("Número de pares inválido: " + numberOfPairs);
+        }
         for (int i = 0; i < numberOfPairs; i++) {
-            String key = in.readUTF();
-            int valueLength = in.readInt();
-            byte[] value = new byte[valueLength];
-            in.readFully(value);
-            pairs.put(key, value);
-        }
-        
-        server.multiPut(pairs);
-        
-        out.writeBoolean(true);
-    } catch (Exception e) {
-        e.printStackTrace();
-        out.writeBoolean(false);
-        }
-    }
-    
-    private void handleMultiGet() throws IOException {
-    try {
-        int numKeys = in.readInt();
-        Set<String> keys = new HashSet<>();
+            ensureBatchCapacity(i + 1);
+            batchKeys[i] = codec.readKey();
+            batchValues[i] = codec.readValue();
+            trace(batchKeys[i], batchValues[i].length);
+        }
+
+        try {
+            if (!admit()) {
+                reply(rejection);
+                return;
+            }
+            reply(server.multiPut(batchKeys, batchValues, numberOfPairs, account) ? STATUS_OK : STATUS_QUOTA);
+        } catch (Exception e) {
+            e.printStackTrace();
+            reply(STATUS_ERROR);
+        } finally {
+            clearBatch(numberOfPairs);
+        }
+    }
 
+    private void handleMultiGet() throws IOException {
+        int numKeys = codec.readCount();
+        if (numKeys < 0) {
+            throw new IOException("Número de chaves inválido: " + numKeys);
+        }
         for (int i = 0; i < numKeys; i++) {
-            keys.add(in.readUTF());
+            ensureBatchCapacity(i + 1);
+            batchKeys[i] = codec.readKey();
+            trace(batchKeys[i], -1);
+        }
+
+        if ((features & FEATURE_STREAMING) != 0) {
+            streamMultiGet(numKeys);
+            return;
+        }
+        try {
+            if (!admit()) {
+                replyStatus(rejection);
+                if (!codec.isCompact()) {
+                    codec.writeInt(0);
+                }
+                return;
+            }
+            int found = server.multiGet(batchKeys, numKeys, batchResults,
+                    (features & FEATURE_COMPRESSION) == 0);
+            replyStatus(STATUS_OK);
+            codec.writeCount(found);
+            writeFound(0, numKeys);
+        } finally {
+            clearBatch(numKeys);
+        }
+    }
+
+    /** Envia cada bloco do lote, pela ordem dos pedidos, assim que a sua leitura termina. */
+    private void streamMultiGet(int numKeys) throws IOException {
+        if (!admit()) {
+            replyStatus(rejection);
+            if (!codec.isCompact()) {
+                codec.writeInt(-1);
+            }
+            clearBatch(numKeys);
+            return;
+        }
+        List<ForkJoinTask<Integer>> chunks = server.multiGetChunks(batchKeys, numKeys, batchResults,
+                (features & FEATURE_COMPRESSION) == 0);
+        int chunkSize = chunks.size() == 1 ? numKeys : server.getBatchChunk();
+        try {
+            replyStatus(STATUS_OK);
+            for (int c = 0; c < chunks.size(); c++) {
+                codec.writeCount(chunks.get(c).join());
+                writeFound(c * chunkSize, Math.min(numKeys, (c + 1) * chunkSize));
+                if (chunks.size() > 1) {
+                    codec.flush();
+                }
+            }
+            codec.writeCount(-1);
+        } finally {
+            // Os blocos ainda em curso usam os arrays do lote: espera por eles antes de os limpar
+            for (ForkJoinTask<Integer> chunk : chunks) {
+                chunk.quietlyJoin();
+            }
+            clearBatch(numKeys);
         }
+    }
 
-        Map<String, byte[]> result = server.multiGet(keys);
+    private void writeFound(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (batchResults[i] != null) {
+                codec.writeKey(batchKeys[i]);
+                writeValue(batchResults[i]);
+            }
+        }
+    }
 
-        out.writeInt(result.size());
+    private void handleGetVersion() throws IOException {
+        String key = codec.readKey();
+        trace(key, -1);
+        if (!admit()) {
+            reply(rejection);
+            if (!codec.isCompact()) {
+                codec.writeLong(0);
+            }
+            return;
+        }
+        StoredValue value = server.getVersioned(key);
 
-        for (Map.Entry<String, byte[]> entry : result.entrySet()) {
-            out.writeUTF(entry.getKey());
-            out.writeInt(entry.getValue().length);
-            out.write(entry.getValue());
+        if (value != null) {
+            reply(STATUS_OK);
+            codec.writeNumber(value.getVersion());
+            writeValue(value);
+        } else {
+            // Em v2 uma chave inexistente não precisa da versão 0
+            reply(STATUS_NOT_FOUND);
+            if (!codec.isCompact()) {
+                codec.writeLong(0);
+            }
         }
-    } catch (IOException e) {
-        e.printStackTrace();
-        out.writeInt(0); 
     }
-}
+
+    private void handleTransaction() throws IOException {
+        int numReads = codec.readCount();
+        if (numReads < 0) {
+            throw new IOException("Número de leituras inválido: " + numReads);
+        }
+        for (int i = 0; i < numReads; i++) {
+            if (readKeys.length == i) {
+                readKeys = Arrays.copyOf(readKeys, i * 2);
+                readVersions = Arrays.copyOf(readVersions, i * 2);
+            }
+            readKeys[i] = codec.readKey();
+            readVersions[i] = codec.readNumber();
+            trace(readKeys[i], -1);
+        }
+
+        int numWrites = codec.readCount();
+        if (numWrites < 0) {
+            throw new IOException("Número de escritas inválido: " + numWrites);
+        }
+        for (int i = 0; i < numWrites; i++) {
+            ensureBatchCapacity(i + 1);
+            batchKeys[i] = codec.readKey();
+            batchValues[i] = codec.readValue();
+            trace(batchKeys[i], batchValues[i].length);
+        }
+
+        try {
+            if (!admit()) {
+                reply(rejection);
+                if (!codec.isCompact()) {
+                    codec.writeLong(0);
+                }
+                return;
+            }
+            long version = server.transaction(readKeys, readVersions, numReads,
+                    batchKeys, batchValues, numWrites, account);
+            if (version > 0) {
+                reply(STATUS_OK);
+                codec.writeNumber(version);
+            } else {
+                reply(version == 0 ? STATUS_CONFLICT : STATUS_QUOTA);
+                if (!codec.isCompact()) {
+                    codec.writeLong(0);
+                }
+            }
+        } finally {
+            Arrays.fill(readKeys, 0, numReads, null);
+            clearBatch(numWrites);
+        }
+    }
+
+    private void clearBatch(int size) {
+        Arrays.fill(batchKeys, 0, size, null);
+        Arrays.fill(batchValues, 0, size, null);
+        Arrays.fill(batchResults, 0, size, null);
+    }
+
+    /**
+     * Lê o feed de alterações a partir de uma sequência, esperando até waitMillis se não houver
+     * nenhuma nova. Resposta: próxima sequência a pedir, número de eventos (-1 se o feed não estiver
+     * ativo) e, por evento, sequência, versão, chave e valor. Em v2 o feed desativado ou o pedido
+     * rejeitado são só o byte de estado.
+     */
+    private void handleChanges() throws IOException {
+        long from = codec.readNumber();
+        int maxEvents = codec.readCount();
+        int waitMillis = codec.readCount();
+        ChangeFeed feed = server.getChangeFeed();
+        if (feed == null || !admit()) {
+            replyStatus(feed == null ? STATUS_UNAVAILABLE : rejection);
+            if (!codec.isCompact()) {
+                codec.writeLong(from);
+                codec.writeInt(-1);
+            }
+            return;
+        }
+
+        int limit = Math.max(1, Math.min(maxEvents, MAX_CHANGES_PER_FETCH));
+        if (changeEvents == null || changeEvents.length < limit) {
+            changeEvents = new ChangeFeed.Event[limit];
+        }
+        long wait = Math.max(0, Math.min(waitMillis, MAX_CHANGES_WAIT_MS));
+        if (deadline != 0) {
+            wait = Math.max(0, Math.min(wait, (deadline - System.nanoTime()) / 1_000_000));
+        }
+        if (wait > 0) {
+            codec.flush();
+        }
+
+        int count;
+        try {
+            count = feed.fetch(from, changeEvents, limit, MAX_CHANGE_BYTES_PER_FETCH, wait,
+                    () -> codec.isPeerClosed(socket));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            count = 0;
+        }
+
+        long next = count > 0 ? changeEvents[count - 1].getSequence() + 1
+                : Math.min(Math.max(from, feed.getOldestSequence()), feed.getNextSequence());
+        replyStatus(STATUS_OK);
+        codec.writeNumber(next);
+        codec.writeCount(count);
+        for (int i = 0; i < count; i++) {
+            ChangeFeed.Event event = changeEvents[i];
+            codec.writeNumber(event.getSequence());
+            codec.writeNumber(event.getValue().getVersion());
+            codec.writeKey(event.getKey());
+            writeValue(event.getValue());
+        }
+        Arrays.fill(changeEvents, 0, count, null);
+    }
 
     private void handleGetWhen() throws IOException {
+        String key = codec.readKey();
+        String keyCond = codec.readKey();
+        byte[] valueCond = codec.readValue();
+        trace(key, -1);
+        trace(keyCond, valueCond.length);
+        if (!admit()) {
+            reply(rejection);
+            return;
+        }
+
+        // Envia respostas pendentes antes de bloquear à espera da condição
+        codec.flush();
         try {
-            String key = in.readUTF();
-            String keyCond = in.readUTF();
-            int valueCondLength = in.readInt();
-            byte[] valueCond = new byte[valueCondLength];
-            in.readFully(valueCond);
-
-            byte[] result = server.getWhen(key, keyCond, valueCond);
-
-            if (result != null) {
-                out.writeBoolean(true);
-                out.writeInt(result.length);
-                out.write(result);
+            StoredValue result = server.getWhen(key, keyCond, valueCond, deadline, () -> codec.isPeerClosed(socket));
+            if (result == null && deadline != 0 && System.nanoTime() - deadline >= 0) {
+                account.recordExpired();
+            }
+
+            if (result == Server.MISSING) {
+                reply(STATUS_NOT_FOUND);
+            } else if (result != null) {
+                reply(STATUS_OK);
+                writeValue(result);
             } else {
-                out.writeBoolean(false);
+                // Prazo expirado ou cliente desligado
+                reply(STATUS_EXPIRED);
             }
         } catch (Exception e) {
             e.printStackTrace();
-            out.writeBoolean(false); 
+            reply(STATUS_ERROR);
         }
     }
 
 
 
+    private void handleStats() throws IOException {
+        if (!admit()) {
+            replyStatus(rejection);
+            if (!codec.isCompact()) {
+                codec.writeInt(0);
+            }
+            return;
+        }
+        String report = server.statsReport(account);
+        if (report == null) {
+            // Sem LOGIN: em v1 um relatório vazio
+            replyStatus(STATUS_DENIED);
+            if (!codec.isCompact()) {
+                codec.writeInt(0);
+            }
+            return;
+        }
+        replyStatus(STATUS_OK);
+        codec.writeValue(report.getBytes(StandardCharsets.UTF_8));
+    }
+
     private void cleanup() {
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
+            if (codec != null) {
+                codec.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+        try {
             if (socket != null) socket.close();
         } catch (IOException e) {
             System.err.println("Error during cleanup: " + e.getMessage());
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão opcional de valores com Deflater, ativada com -Dsd.compression.threshold=N:
+ * só valores com pelo menos N bytes são comprimidos, e só se o resultado for mais pequeno.
+ * Deflater/Inflater são reutilizados por thread para não pagar a alocação nativa em cada pedido.
+ */
+public class Compression {
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final int threshold;
+    private final LongAdder compressedValues;
+    private final LongAdder skippedValues;
+    private final LongAdder rawBytes;
+    private final LongAdder storedBytes;
+
+    public Compression(int threshold) {
+        this.threshold = threshold;
+        this.compressedValues = new LongAdder();
+        this.skippedValues = new LongAdder();
+        this.rawBytes = new LongAdder();
+        this.storedBytes = new LongAdder();
+    }
+
+    /** Devolve null se a compressão não estiver ativa. */
+    public static Compression fromProperties() {
+        Integer threshold = Integer.getInteger("sd.compression.threshold");
+        return threshold != null && threshold > 0 ? new Compression(threshold) : null;
+    }
+
+    /** Comprime o valor, ou devolve-o tal como está se for pequeno ou não encolher. */
+    public StoredValue encode(byte[] raw) {
+        if (raw.length < threshold) {
+            return new StoredValue(raw, 0);
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // Um buffer menor do que o original: se não chegar, a compressão não compensa
+        byte[] buffer = new byte[raw.length - 1];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        rawBytes.add(raw.length);
+        if (!deflater.finished()) {
+            skippedValues.increment();
+            storedBytes.add(raw.length);
+            return new StoredValue(raw, 0);
+        }
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        compressedValues.increment();
+        storedBytes.add(length);
+        return new StoredValue(compressed, 0, true, raw.length);
+    }
+
+    public static byte[] decompress(byte[] data, int rawLength) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] raw = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IllegalStateException("Valor comprimido truncado");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Valor comprimido inválido", e);
+        }
+        return raw;
+    }
+
+    public String report() {
+        return String.format("Compressão (>= %d bytes): comprimidos=%d sem_ganho=%d bytes_originais=%d bytes_guardados=%d",
+                threshold, compressedValues.sum(), skippedValues.sum(), rawBytes.sum(), storedBytes.sum());
+    }
+}
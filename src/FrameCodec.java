@@ -0,0 +1,473 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec do protocolo binário usado pelo ClientHandler.
+ * Lê os pedidos em bloco para um buffer do pool e descodifica os campos a partir dele;
+ * as respostas são codificadas num segundo buffer e enviadas numa única escrita
+ * quando o handler precisa de voltar a ler do socket.
+ * O formato no fio é o mesmo do DataInputStream/DataOutputStream (writeUTF, writeInt, ...).
+ *
+ * No modo compacto (protocolo v2, ver setCompact) as chaves são bytes UTF-8 prefixados por um
+ * varint, e tamanhos, contagens e números (readCount/readNumber e correspondentes de escrita)
+ * são varints sem sinal em vez de int/long de tamanho fixo.
+ */
+public class FrameCodec {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int KEY_CACHE_SIZE = 256;
+    // Limite do writeUTF, também para as chaves v2: qualquer chave guardada pode ser enviada a um
+    // cliente v1 (por exemplo no feed de alterações)
+    private static final int MAX_KEY_BYTES = 65535;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final BufferPool pool;
+
+    private byte[] inBuf;
+    private int inPos;
+    private int inLimit;
+
+    private byte[] outBuf;
+    private int outPos;
+
+    // Cache de chaves ASCII já descodificadas: uma chave repetida não aloca nenhuma String nova
+    private final String[] keyCache;
+    private boolean compact;
+    private CharsetDecoder utf8;
+
+    private long readCalls;
+    private long writeCalls;
+    private long bytesRead;
+    private long bytesFlushed;
+
+    public FrameCodec(InputStream in, OutputStream out, BufferPool pool) {
+        this.in = in;
+        this.out = out;
+        this.pool = pool;
+        this.inBuf = pool.acquire();
+        this.outBuf = pool.acquire();
+        this.keyCache = new String[KEY_CACHE_SIZE];
+    }
+
+    public long getReadCalls() {
+        return readCalls;
+    }
+
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    /** Total de bytes já descodificados (exclui o que está no buffer por ler). */
+    public long getBytesConsumed() {
+        return bytesRead - (inLimit - inPos);
+    }
+
+    /** Total de bytes de resposta codificados, enviados ou ainda no buffer. */
+    public long getBytesWritten() {
+        return bytesFlushed + outPos;
+    }
+
+    public boolean hasBufferedInput() {
+        return inPos < inLimit;
+    }
+
+    /** Passa a usar a codificação do protocolo v2 nos dois sentidos. */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    // ---- Leitura ----
+
+    private void require(int n) throws IOException {
+        if (inLimit - inPos >= n) {
+            return;
+        }
+        if (inPos > 0) {
+            System.arraycopy(inBuf, inPos, inBuf, 0, inLimit - inPos);
+            inLimit -= inPos;
+            inPos = 0;
+        }
+        // Antes de bloquear à espera do cliente, envia o que estiver pendente
+        flush();
+        while (inLimit < n) {
+            int read = in.read(inBuf, inLimit, inBuf.length - inLimit);
+            readCalls++;
+            if (read < 0) {
+                throw new EOFException();
+            }
+            inLimit += read;
+            bytesRead += read;
+        }
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return inBuf[inPos++];
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = ((inBuf[inPos] & 0xFF) << 24)
+                | ((inBuf[inPos + 1] & 0xFF) << 16)
+                | ((inBuf[inPos + 2] & 0xFF) << 8)
+                | (inBuf[inPos + 3] & 0xFF);
+        inPos += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        long high = readInt() & 0xFFFFFFFFL;
+        long low = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    /** Lê uma chave no formato de writeUTF (v1) ou como varint + bytes UTF-8 (v2). */
+    public String readKey() throws IOException {
+        int length;
+        if (compact) {
+            length = readVarInt();
+            if (length < 0 || length > MAX_KEY_BYTES) {
+                throw new UTFDataFormatException("Chave demasiado grande: " + length + " bytes");
+            }
+            if (length > inBuf.length / 2) {
+                byte[] encoded = new byte[length];
+                readFully(encoded, 0, length);
+                return decodeUtf8(encoded, 0, length);
+            }
+        } else {
+            require(2);
+            length = ((inBuf[inPos] & 0xFF) << 8) | (inBuf[inPos + 1] & 0xFF);
+            inPos += 2;
+        }
+        require(length);
+
+        int offset = inPos;
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            byte b = inBuf[offset + i];
+            if (b <= 0) {
+                ascii = false;
+                break;
+            }
+            hash = 31 * hash + b;
+        }
+        inPos += length;
+
+        if (!ascii) {
+            return compact ? decodeUtf8(inBuf, offset, length) : decodeModifiedUtf8(offset, length);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+        String cached = keyCache[slot];
+        if (cached != null && matches(cached, offset, length)) {
+            return cached;
+        }
+        String key = new String(inBuf, offset, length, StandardCharsets.ISO_8859_1);
+        keyCache[slot] = key;
+        return key;
+    }
+
+    /**
+     * UTF-8 estrito: bytes inválidos terminam a ligação em vez de criarem uma chave diferente.
+     * A chave também tem de caber em writeUTF, onde o NUL e os pares surrogate ocupam mais bytes.
+     */
+    private String decodeUtf8(byte[] src, int offset, int length) throws IOException {
+        if (utf8 == null) {
+            utf8 = StandardCharsets.UTF_8.newDecoder();
+        }
+        String key = utf8.decode(ByteBuffer.wrap(src, offset, length)).toString();
+        int modifiedLength = modifiedUtf8Length(key);
+        if (modifiedLength > MAX_KEY_BYTES) {
+            throw new UTFDataFormatException("Chave demasiado grande: " + modifiedLength + " bytes em writeUTF");
+        }
+        return key;
+    }
+
+    private static int modifiedUtf8Length(String key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            length += c != 0 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private boolean matches(String key, int offset, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != inBuf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeModifiedUtf8(int offset, int length) throws IOException {
+        byte[] encoded = new byte[length + 2];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        System.arraycopy(inBuf, offset, encoded, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    /** Varint sem sinal (LEB128), até 64 bits. */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (inPos == inLimit) {
+                require(1);
+            }
+            byte b = inBuf[inPos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint inválido");
+    }
+
+    /** Varint de 32 bits; valores acima de 2^31 - 1 são negativos, como em writeCount. */
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > 0xFFFFFFFFL) {
+            throw new IOException("Varint fora do intervalo: " + value);
+        }
+        return (int) value;
+    }
+
+    /** Tamanho ou contagem: int (v1) ou varint (v2). */
+    public int readCount() throws IOException {
+        return compact ? readVarInt() : readInt();
+    }
+
+    /** Versão, sequência ou prazo: long (v1) ou varint (v2). */
+    public long readNumber() throws IOException {
+        return compact ? readVarLong() : readLong();
+    }
+
+    /** Lê um valor prefixado pelo seu tamanho (int em v1, varint em v2). */
+    public byte[] readValue() throws IOException {
+        int length = readCount();
+        if (length < 0) {
+            throw new IOException("Tamanho de valor inválido: " + length);
+        }
+        byte[] value = new byte[length];
+        readFully(value, 0, length);
+        return value;
+    }
+
+    /**
+     * Verifica, sem bloquear mais do que 1 ms, se o cliente fechou a ligação.
+     * Dados que entretanto cheguem ficam no buffer para o próximo pedido.
+     */
+    public boolean isPeerClosed(Socket socket) {
+        if (inPos > 0) {
+            System.arraycopy(inBuf, inPos, inBuf, 0, inLimit - inPos);
+            inLimit -= inPos;
+            inPos = 0;
+        }
+        if (inLimit == inBuf.length) {
+            return false;
+        }
+        try {
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                int read = in.read(inBuf, inLimit, inBuf.length - inLimit);
+                readCalls++;
+                if (read < 0) {
+                    return true;
+                }
+                inLimit += read;
+                bytesRead += read;
+                return false;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public void readFully(byte[] dst, int offset, int length) throws IOException {
+        int buffered = Math.min(length, inLimit - inPos);
+        System.arraycopy(inBuf, inPos, dst, offset, buffered);
+        inPos += buffered;
+        int done = buffered;
+        if (done < length) {
+            flush();
+        }
+        // O resto vai diretamente para o destino, sem passar pelo buffer
+        while (done < length) {
+            int read = in.read(dst, offset + done, length - done);
+            readCalls++;
+            if (read < 0) {
+                throw new EOFException();
+            }
+            done += read;
+            bytesRead += read;
+        }
+    }
+
+    // ---- Escrita ----
+
+    private void ensure(int n) throws IOException {
+        if (outBuf.length - outPos < n) {
+            flushBuffer();
+        }
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensure(1);
+        outBuf[outPos++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        outBuf[outPos] = (byte) (value >>> 24);
+        outBuf[outPos + 1] = (byte) (value >>> 16);
+        outBuf[outPos + 2] = (byte) (value >>> 8);
+        outBuf[outPos + 3] = (byte) value;
+        outPos += 4;
+    }
+
+    public void writeLong(long value) throws IOException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeVarLong(long value) throws IOException {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            outBuf[outPos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outBuf[outPos++] = (byte) value;
+    }
+
+    /** Tamanho ou contagem: int (v1) ou varint (v2); -1 ocupa 5 bytes em v2. */
+    public void writeCount(int value) throws IOException {
+        if (compact) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        } else {
+            writeInt(value);
+        }
+    }
+
+    /** Versão ou sequência: long (v1) ou varint (v2). */
+    public void writeNumber(long value) throws IOException {
+        if (compact) {
+            writeVarLong(value);
+        } else {
+            writeLong(value);
+        }
+    }
+
+    /** Escreve uma chave no formato de writeUTF (v1) ou como varint + bytes UTF-8 (v2). */
+    public void writeKey(String key) throws IOException {
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c == 0 || c > 0x7F) {
+                if (compact) {
+                    if (modifiedUtf8Length(key) > MAX_KEY_BYTES) {
+                        throw new UTFDataFormatException("Chave demasiado grande: " + key.length() + " caracteres");
+                    }
+                    writeValue(key.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream(length + 8);
+                new DataOutputStream(encoded).writeUTF(key);
+                writeBytes(encoded.toByteArray(), 0, encoded.size());
+                return;
+            }
+        }
+        if (length > MAX_KEY_BYTES) {
+            throw new UTFDataFormatException("Chave demasiado grande: " + length + " bytes");
+        }
+        if (compact) {
+            writeVarLong(length);
+        } else {
+            ensure(2);
+            outBuf[outPos] = (byte) (length >>> 8);
+            outBuf[outPos + 1] = (byte) length;
+            outPos += 2;
+        }
+        int done = 0;
+        while (done < length) {
+            if (outPos == outBuf.length) {
+                flushBuffer();
+            }
+            int n = Math.min(length - done, outBuf.length - outPos);
+            for (int i = 0; i < n; i++) {
+                outBuf[outPos + i] = (byte) key.charAt(done + i);
+            }
+            outPos += n;
+            done += n;
+        }
+    }
+
+    /** Escreve um valor prefixado pelo seu tamanho (int em v1, varint em v2). */
+    public void writeValue(byte[] value) throws IOException {
+        writeCount(value.length);
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (outPos == outBuf.length) {
+                flushBuffer();
+            }
+            int n = Math.min(length, outBuf.length - outPos);
+            System.arraycopy(src, offset, outBuf, outPos, n);
+            outPos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (outPos > 0) {
+            out.write(outBuf, 0, outPos);
+            writeCalls++;
+            bytesFlushed += outPos;
+            outPos = 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        if (outPos > 0) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /** Devolve os buffers ao pool; o codec não pode ser usado depois disto. */
+    public void release() {
+        pool.release(inBuf);
+        pool.release(outBuf);
+        inBuf = null;
+        outBuf = null;
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deteção de chaves quentes com um Count-Min sketch.
+ * Só é contado um acesso em cada sampleRate, escolhido ao acaso por cada thread: uma chave quente
+ * é acedida por todas as threads, e contar todos os acessos faria os seus contadores saltar de
+ * core em core a cada GET. As estimativas são multiplicadas por sampleRate.
+ * Os contadores são incrementados sem sincronização: uma contagem perdida numa corrida
+ * só torna a estimativa ligeiramente mais baixa, o que é aceitável para este fim.
+ * A cada janela (rotate) calcula-se o top-K e os contadores são reduzidos para metade,
+ * para que chaves que deixaram de ser acedidas arrefeçam.
+ */
+public class HotKeyTracker {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private static final int MAX_CANDIDATES = 1024;
+
+    private final int topK;
+    private final int minCount;
+    private final double minFraction;
+    private final int sampleRate;
+    private final int[][] counts;
+    private final LongAdder total;
+    private final Set<String> candidates;
+    private volatile List<Map.Entry<String, Long>> top;
+
+    /**
+     * @param topK        número máximo de chaves quentes
+     * @param minCount    acessos mínimos (na janela) para uma chave ser considerada
+     * @param minFraction fração mínima dos acessos da janela para uma chave ser quente
+     * @param sampleRate  conta um acesso em cada sampleRate (1 = todos)
+     */
+    public HotKeyTracker(int topK, int minCount, double minFraction, int sampleRate) {
+        this.topK = topK;
+        this.minCount = minCount;
+        this.minFraction = minFraction;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.counts = new int[DEPTH][WIDTH];
+        this.total = new LongAdder();
+        this.candidates = ConcurrentHashMap.newKeySet();
+        this.top = Collections.emptyList();
+    }
+
+    private static int index(int hash, int row) {
+        return (hash * SEEDS[row]) >>> (32 - Integer.numberOfTrailingZeros(WIDTH));
+    }
+
+    public void record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        int hash = key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int[] rowCounts = counts[row];
+            int i = index(hash, row);
+            int count = rowCounts[i] + 1;
+            rowCounts[i] = count;
+            estimate = Math.min(estimate, count);
+        }
+        total.increment();
+        // contains antes de add: uma chave que já é candidata não volta a escrever no conjunto
+        if ((long) estimate * sampleRate >= minCount && !candidates.contains(key)
+                && candidates.size() < MAX_CANDIDATES) {
+            candidates.add(key);
+        }
+    }
+
+    public long estimate(String key) {
+        int hash = key.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counts[row][index(hash, row)]);
+        }
+        return (long) estimate * sampleRate;
+    }
+
+    /**
+     * Fecha a janela atual: devolve as chaves quentes (por ordem decrescente de acessos)
+     * e envelhece os contadores.
+     */
+    public List<Map.Entry<String, Long>> rotate() {
+        long windowTotal = total.sumThenReset() * sampleRate;
+        long threshold = Math.max(minCount, (long) (windowTotal * minFraction));
+
+        List<Map.Entry<String, Long>> hot = new ArrayList<>();
+        for (String key : candidates) {
+            long estimate = estimate(key);
+            if (estimate >= threshold) {
+                hot.add(new AbstractMap.SimpleImmutableEntry<>(key, estimate));
+            }
+        }
+        hot.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        if (hot.size() > topK) {
+            hot = new ArrayList<>(hot.subList(0, topK));
+        }
+
+        for (int[] rowCounts : counts) {
+            for (int i = 0; i < rowCounts.length; i++) {
+                rowCounts[i] >>>= 1;
+            }
+        }
+        candidates.clear();
+        for (Map.Entry<String, Long> entry : hot) {
+            candidates.add(entry.getKey());
+        }
+        top = Collections.unmodifiableList(hot);
+        return top;
+    }
+
+    /** Chaves quentes da última janela. */
+    public List<Map.Entry<String, Long>> getTop() {
+        return top;
+    }
+}
@@ -1,35 +1,209 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 import java.util.concurrent.locks.*;
 
 public class Server {
     private static final int PORT = 8080;
+    private static final long HOT_KEY_WINDOW_MS = 1000;
+    // Intervalo máximo entre verificações de cancelamento de um GETWHEN em espera
+    private static final long CANCEL_CHECK_NANOS = 100_000_000L;
+    // Número de faixas dos locks de GETWHEN (potência de 2)
+    private static final int WAIT_STRIPES = 64;
+    // Resultado de getWhen quando a condição se verificou mas a chave pedida não existe
+    public static final StoredValue MISSING = new StoredValue(new byte[0], 0);
+    private final int port;
     private final int maxSessions;
-    private final Map<String, byte[]> storage;
-    private final Map<String, String> users;
+    private final Map<String, StoredValue> storage;
+    private final UserDirectory users;
     private int currentSessions;
 
     private final ReadWriteLock storageLock;
     private final Lock sessionLock;
     private final Condition sessionAvailable;
-    private final Map<String, Condition> keyConditions;
+    // Locks dos GETWHEN, um por faixa de hash da chave da condição (WAIT_STRIPES, potência de 2)
+    private final Lock[] waitLocks;
+    private final Map<String, KeyWaiters> keyConditions;
+    private final BufferPool bufferPool;
+    private final Map<String, UserAccount> accounts;
+    private final HotKeyTracker hotKeyTracker;
+    private final Map<String, HotValue> hotValues;
+    // Seqlock das cópias de leitura: ímpar enquanto uma escrita as está a alterar. Quem lê sem
+    // lock só aceita o que leu se o valor for par e não tiver mudado, para nunca ver metade
+    // de um MULTIPUT/TXN
+    private volatile long hotStamp;
+    // Versão do último commit; protegida pelo write lock
+    private long lastVersion;
+    private final LongAdder txnCommits;
+    private final LongAdder txnAborts;
+    private final Compression compression;
+    private final ValuePool valuePool;
+    private final TraceWriter traceWriter;
+    private final ChangeFeed changeFeed;
+    private final AtomicInteger connectionIds;
+    // Lotes MULTIGET/MULTIPUT com pelo menos batchThreshold chaves são divididos em blocos
+    // de batchChunk chaves, executados em paralelo no batchPool
+    private final ForkJoinPool batchPool;
+    private final int batchThreshold;
+    private final int batchChunk;
+    // Único utilizador que recebe o relatório de todas as contas (-Dsd.stats.admin); null = nenhum
+    private final String statsAdmin;
+
+    /**
+     * Registo dos GETWHEN à espera de alterações numa chave; removido quando o último sai.
+     * Protegido pelo lock da faixa da chave.
+     */
+    private static class KeyWaiters {
+        final Condition changed;
+        int count;
+        // Incrementado a cada escrita na chave: quem espera só reavalia a condição quando muda
+        long changes;
+
+        KeyWaiters(Condition changed) {
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * Cópia de leitura de uma chave quente, lida sem o storageLock e validada com o hotStamp.
+     * Só é alterada com o write lock, logo a seguir à escrita no storage.
+     */
+    private static class HotValue {
+        // Marca uma cópia que deixou de ser mantida: quem a encontrar volta ao caminho normal
+        static final StoredValue DEMOTED = new StoredValue(new byte[0], -1);
+
+        volatile StoredValue value;
+
+        HotValue(StoredValue value) {
+            this.value = value;
+        }
+    }
 
     public Server(int maxSessions) {
+        this(maxSessions, PORT);
+    }
+
+    public Server(int maxSessions, int port) {
+        this.port = port;
         this.maxSessions = maxSessions;
         this.storage = new HashMap<>();
-        this.users = new HashMap<>();
+        this.users = UserDirectory.fromProperties();
         this.currentSessions = 0;
 
         this.storageLock = new ReentrantReadWriteLock();
         this.sessionLock = new ReentrantLock();
         this.sessionAvailable = sessionLock.newCondition();
-        this.keyConditions = new HashMap<>();
+        this.waitLocks = new Lock[WAIT_STRIPES];
+        for (int i = 0; i < WAIT_STRIPES; i++) {
+            waitLocks[i] = new ReentrantLock();
+        }
+        this.keyConditions = new ConcurrentHashMap<>();
+        this.bufferPool = new BufferPool(FrameCodec.BUFFER_SIZE, 2 * maxSessions);
+        this.accounts = new ConcurrentHashMap<>();
+        this.hotKeyTracker = new HotKeyTracker(
+                Integer.getInteger("sd.hotkeys.topk", 16), 64, 0.01,
+                Integer.getInteger("sd.hotkeys.sample", 16));
+        this.hotValues = new ConcurrentHashMap<>();
+        this.lastVersion = 0;
+        this.txnCommits = new LongAdder();
+        this.txnAborts = new LongAdder();
+        this.compression = Compression.fromProperties();
+        this.valuePool = ValuePool.fromProperties();
+        this.traceWriter = TraceWriter.fromProperties();
+        this.changeFeed = ChangeFeed.fromProperties();
+        this.connectionIds = new AtomicInteger();
+        this.batchPool = new ForkJoinPool(Integer.getInteger("sd.batch.parallelism",
+                Runtime.getRuntime().availableProcessors()));
+        this.batchThreshold = Integer.getInteger("sd.batch.threshold", 1024);
+        this.batchChunk = Math.max(1, Integer.getInteger("sd.batch.chunk", 512));
+        this.statsAdmin = System.getProperty("sd.stats.admin");
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /** Captura de comandos, ou null se não estiver ativa. */
+    public TraceWriter getTraceWriter() {
+        return traceWriter;
+    }
+
+    /** Feed de alterações, ou null se não estiver ativo. */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    public int nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    /** Conta de um utilizador; o nome vazio corresponde às ligações ainda não autenticadas. */
+    public UserAccount getAccount(String username) {
+        return accounts.computeIfAbsent(username, name -> new UserAccount(name, UserLimits.forUser(name)));
+    }
+
+    /**
+     * Relatório pedido por CMD_STATS: null se a ligação não estiver autenticada, o relatório
+     * completo para o administrador e, para os restantes, só a conta de quem pede.
+     */
+    public String statsReport(UserAccount caller) {
+        if (caller.getUsername().isEmpty()) {
+            return null;
+        }
+        if (caller.getUsername().equals(statsAdmin)) {
+            return statsReport();
+        }
+        return caller.report() + '\n';
+    }
+
+    /** Relatório de todas as contas, chaves quentes e subsistemas. */
+    public String statsReport() {
+        StringBuilder report = new StringBuilder();
+        List<String> names = new ArrayList<>(accounts.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            report.append(accounts.get(name).report()).append('\n');
+        }
+        report.append(users.report()).append('\n');
+        report.append("Transações: commits=").append(txnCommits.sum())
+                .append(" aborts=").append(txnAborts.sum()).append('\n');
+        if (compression != null) {
+            report.append(compression.report()).append('\n');
+        }
+        if (traceWriter != null) {
+            report.append(traceWriter.report()).append('\n');
+        }
+        if (changeFeed != null) {
+            report.append(changeFeed.report()).append('\n');
+        }
+        if (valuePool != null) {
+            storageLock.readLock().lock();
+            try {
+                report.append(valuePool.report()).append('\n');
+            } finally {
+                storageLock.readLock().unlock();
+            }
+        }
+        List<Map.Entry<String, Long>> hot = hotKeyTracker.getTop();
+        if (!hot.isEmpty()) {
+            report.append("Chaves quentes (acessos estimados na última janela):\n");
+            for (Map.Entry<String, Long> entry : hot) {
+                report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+        return report.toString();
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port " + PORT);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Server started on port " + port);
+            startHotKeyRefresher();
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
@@ -41,6 +215,52 @@ public class Server {
         }
     }
 
+    private void startHotKeyRefresher() {
+        Thread refresher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(HOT_KEY_WINDOW_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                refreshHotKeys();
+            }
+        }, "hot-keys");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /** Atualiza o conjunto de chaves servidas pela cópia de leitura com o top-K da última janela. */
+    void refreshHotKeys() {
+        List<Map.Entry<String, Long>> top = hotKeyTracker.rotate();
+        Set<String> hot = new HashSet<>();
+        for (Map.Entry<String, Long> entry : top) {
+            hot.add(entry.getKey());
+        }
+        if (hot.equals(hotValues.keySet())) {
+            return;
+        }
+
+        storageLock.writeLock().lock();
+        try {
+            Iterator<Map.Entry<String, HotValue>> it = hotValues.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, HotValue> entry = it.next();
+                if (!hot.contains(entry.getKey())) {
+                    entry.getValue().value = HotValue.DEMOTED;
+                    it.remove();
+                }
+            }
+            for (String key : hot) {
+                if (!hotValues.containsKey(key)) {
+                    hotValues.put(key, new HotValue(storage.get(key)));
+                }
+            }
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+    }
+
     public boolean tryAcquireSession() {
         sessionLock.lock();
         try {
@@ -72,12 +292,27 @@ public class Server {
 
 
     public byte[] get(String key) {
+        StoredValue value = getVersioned(key);
+        return value != null ? value.getData() : null;
+    }
+
+    /** Como get, mas devolve também a versão do valor (necessária para as transações). */
+    public StoredValue getVersioned(String key) {
         System.out.println("Iniciando GET para chave: " + key);
+        hotKeyTracker.record(key);
+        HotValue hot = hotValues.get(key);
+        if (hot != null) {
+            long stamp = hotStamp;
+            StoredValue value = hot.value;
+            if (value != HotValue.DEMOTED && (stamp & 1) == 0 && hotStamp == stamp) {
+                return value;
+            }
+        }
         storageLock.readLock().lock();
         try {
-            byte[] value = storage.get(key);
+            StoredValue value = storage.get(key);
             if (value != null) {
-                System.out.println("Chave " + key + " encontrada, valor: " + new String(value));
+                System.out.println("Chave " + key + " encontrada, " + value.getRawLength() + " bytes.");
             } else {
                 System.out.println("Chave " + key + " não encontrada.");
             }
@@ -87,112 +322,449 @@ public class Server {
         }
     }
 
-    public void put(String key, byte[] value) {
+    /** Prepara um valor para ser guardado (comprimido e com hash de conteúdo, se ativos); feito fora do lock. */
+    private StoredValue encode(byte[] value) {
+        StoredValue encoded = compression != null ? compression.encode(value) : new StoredValue(value, 0);
+        return valuePool != null ? valuePool.hash(encoded) : encoded;
+    }
+
+    private StoredValue[] encode(byte[][] values, int count) {
+        StoredValue[] encoded = new StoredValue[count];
+        if (count < batchThreshold || (compression == null && valuePool == null)) {
+            encodeRange(values, 0, count, encoded);
+            return encoded;
+        }
+        // Compressão e hash de deduplicação são o custo do MULTIPUT: são feitos em paralelo, antes do lock
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += batchChunk) {
+            int start = from;
+            int end = Math.min(count, from + batchChunk);
+            tasks.add(batchPool.submit(() -> encodeRange(values, start, end, encoded)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return encoded;
+    }
+
+    private void encodeRange(byte[][] values, int from, int to, StoredValue[] encoded) {
+        for (int i = from; i < to; i++) {
+            encoded[i] = encode(values[i]);
+        }
+    }
+
+    /**
+     * Escreve no storage, na cópia de leitura (se a chave for quente) e no feed. Requer o write lock.
+     * A quota do novo dono já foi reservada; a do dono anterior, se for outro, é libertada aqui.
+     */
+    private void store(String key, StoredValue value, long version, UserAccount owner) {
+        StoredValue stored = value.isShared() ? valuePool.intern(value, version, owner)
+                : value.withVersion(version, owner);
+        StoredValue previous = storage.put(key, stored);
+        if (changeFeed != null) {
+            changeFeed.append(key, stored);
+        }
+        if (previous != null && previous.getOwner() != owner && previous.getOwner() != null) {
+            previous.getOwner().release(1, previous.getStoredData().length);
+        }
+        if (previous != null && previous.isShared()) {
+            valuePool.release(previous);
+        }
+        HotValue hot = hotValues.get(key);
+        if (hot != null) {
+            if ((hotStamp & 1) == 0) {
+                hotStamp++;
+            }
+            hot.value = stored;
+        }
+    }
+
+    /** Fecha a escrita nas cópias de leitura aberta por store. Requer o write lock. */
+    private void publishHotValues() {
+        if ((hotStamp & 1) != 0) {
+            hotStamp++;
+        }
+    }
+
+    /** Torna visíveis no feed, de uma vez, as alterações escritas por store. Requer o write lock. */
+    private void publishChanges() {
+        if (changeFeed != null) {
+            changeFeed.publish();
+        }
+    }
+
+    /**
+     * Reserva na quota do utilizador o efeito de escrever os pares indicados. Requer o write lock.
+     * Só a última escrita de cada chave conta, por ser a que fica guardada.
+     */
+    private boolean reserveQuota(String[] keys, StoredValue[] values, int count, UserAccount account) {
+        long deltaKeys = 0;
+        long deltaBytes = 0;
+        Set<String> seen = count > 1 ? new HashSet<>() : null;
+        for (int i = count - 1; i >= 0; i--) {
+            if (seen != null && !seen.add(keys[i])) {
+                continue;
+            }
+            StoredValue previous = storage.get(keys[i]);
+            deltaKeys += quotaKeys(previous, account);
+            deltaBytes += quotaBytes(previous, values[i], account);
+        }
+        return account.reserve(deltaKeys, deltaBytes);
+    }
+
+    /**
+     * Substituir um valor de outro utilizador conta como chave nova com o tamanho todo para quem
+     * escreve; o dono anterior recupera a sua parte em store.
+     */
+    private static long quotaKeys(StoredValue previous, UserAccount account) {
+        return previous != null && previous.getOwner() == account ? 0 : 1;
+    }
+
+    private static long quotaBytes(StoredValue previous, StoredValue value, UserAccount account) {
+        return value.getStoredData().length
+                - (previous != null && previous.getOwner() == account ? previous.getStoredData().length : 0);
+    }
+
+    /**
+     * Devolve false, sem escrever, se a escrita exceder a quota do utilizador.
+     */
+    public boolean put(String key, byte[] value, UserAccount account) {
         System.out.println("Iniciando PUT para chave: " + key);
+        StoredValue encoded = encode(value);
         storageLock.writeLock().lock();  // Bloqueio de escrita
         try {
-            storage.put(key, value);
-            System.out.println("Chave " + key + " inserida com sucesso.");
-            Condition condition = keyConditions.get(key);
-            if (condition != null) {
-                condition.signalAll();
+            StoredValue previous = storage.get(key);
+            if (!account.reserve(quotaKeys(previous, account), quotaBytes(previous, encoded, account))) {
+                System.out.println("Quota excedida por " + account.getUsername() + " na chave " + key);
+                return false;
             }
+            store(key, encoded, ++lastVersion, account);
+            System.out.println("Chave " + key + " inserida com sucesso.");
         } finally {
+            publishHotValues();
+            publishChanges();
             storageLock.writeLock().unlock();
         }
+        signalWaiters(key);
+        wakeConsumers();
+        return true;
     }
 
-    public void multiPut(Map<String, byte[]> pairs) {
+    /**
+     * Acorda os GETWHEN que esperam por alterações na chave.
+     * Chamado depois de largar o storageLock: getWhen adquire o lock da faixa antes do storageLock.
+     */
+    private void signalWaiters(String key) {
+        if (!keyConditions.containsKey(key)) {
+            return;
+        }
+        Lock waitLock = waitLock(key);
+        waitLock.lock();
+        try {
+            KeyWaiters waiters = keyConditions.get(key);
+            if (waiters != null) {
+                waiters.changes++;
+                waiters.changed.signalAll();
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private Lock waitLock(String key) {
+        int h = key.hashCode();
+        return waitLocks[(h ^ (h >>> 16)) & (WAIT_STRIPES - 1)];
+    }
+
+    private void wakeConsumers() {
+        if (changeFeed != null) {
+            changeFeed.wakeConsumers();
+        }
+    }
+
+    /**
+     * Escreve todos os pares ou nenhum: devolve false se o conjunto exceder a quota do utilizador.
+     */
+    public boolean multiPut(String[] keys, byte[][] values, int count, UserAccount account) {
         System.out.println("Iniciando MULTIPUT...");
+        StoredValue[] encoded = encode(values, count);
         storageLock.writeLock().lock();
         try {
-            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                System.out.println("Inserindo chave: " + entry.getKey());
-                storage.put(entry.getKey(), entry.getValue());
+            if (!reserveQuota(keys, encoded, count, account)) {
+                System.out.println("Quota excedida por " + account.getUsername() + " no MULTIPUT");
+                return false;
+            }
+            long version = ++lastVersion;
+            for (int i = 0; i < count; i++) {
+                store(keys[i], encoded[i], version, account);
             }
-            System.out.println("Todas as chaves inseridas com sucesso.");
+            System.out.println(count + " chaves inseridas com sucesso.");
         } finally {
+            publishHotValues();
+            publishChanges();
             storageLock.writeLock().unlock();
         }
+        for (int i = 0; i < count; i++) {
+            signalWaiters(keys[i]);
+        }
+        wakeConsumers();
+        return true;
     }
 
-    public Map<String, byte[]> multiGet(Set<String> keys) {
-        Map<String, byte[]> result = new HashMap<>();
-        System.out.println("Iniciando MULTIGET para " + keys.size() + " chaves...");
-        for (String key : keys) {
-            storageLock.readLock().lock();
-            try {
-                byte[] value = storage.get(key);
-                if (value != null) {
-                    result.put(key, value);
-                    System.out.println("Chave " + key + " encontrada, valor: " + new String(value));
-                } else {
-                    System.out.println("Chave " + key + " não encontrada.");
-                }
-            } finally {
-                storageLock.readLock().unlock();
+    /**
+     * Preenche results[i] com o valor de keys[i] (ou null) e devolve o número de chaves encontradas.
+     */
+    public int multiGet(String[] keys, int count, StoredValue[] results, boolean decompress) {
+        System.out.println("Iniciando MULTIGET para " + count + " chaves...");
+        int found = 0;
+        if (count < batchThreshold) {
+            found = readChunk(keys, 0, count, results, decompress);
+        } else {
+            for (ForkJoinTask<Integer> chunk : multiGetChunks(keys, count, results, decompress)) {
+                found += chunk.join();
             }
         }
-        System.out.println("MULTIGET finalizado.");
-        return result;
+        System.out.println("MULTIGET finalizado: " + found + " chaves encontradas.");
+        return found;
     }
 
-    public byte[] getWhen(String key, String keyCond, byte[] valueCond) {
-        System.out.println("Iniciando GETWHEN para chave: " + key + " com condição para chave: " + keyCond);
-        storageLock.readLock().lock();
-        try {
-            keyConditions.putIfAbsent(keyCond, storageLock.writeLock().newCondition());
-            Condition condition = keyConditions.get(keyCond);
+    /** Tamanho dos blocos devolvidos por multiGetChunks quando há mais do que um. */
+    public int getBatchChunk() {
+        return batchChunk;
+    }
 
-            while (true) {
-                byte[] currentValue = storage.get(keyCond);
-                if (currentValue != null && Arrays.equals(currentValue, valueCond)) {
-                    byte[] resultValue = storage.get(key);
-                    System.out.println("Condição satisfeita. Valor para chave " + key + ": " + new String(resultValue));
-                    return resultValue;
+    /**
+     * Lança a leitura de um lote em blocos paralelos de batchChunk chaves (um só bloco abaixo do
+     * limiar). A tarefa i preenche results para as chaves [i * batchChunk, (i + 1) * batchChunk)
+     * e devolve quantas encontrou, para o handler enviar cada bloco assim que fica pronto.
+     * Com decompress, os valores comprimidos são descomprimidos dentro do bloco, também em paralelo.
+     */
+    public List<ForkJoinTask<Integer>> multiGetChunks(String[] keys, int count, StoredValue[] results,
+                                                      boolean decompress) {
+        List<ForkJoinTask<Integer>> chunks = new ArrayList<>();
+        if (count < batchThreshold) {
+            // Caminho sequencial: executado já, na thread do handler
+            ForkJoinTask<Integer> chunk = ForkJoinTask.adapt(() -> readChunk(keys, 0, count, results, decompress));
+            chunk.invoke();
+            chunks.add(chunk);
+            return chunks;
+        }
+        for (int from = 0; from < count; from += batchChunk) {
+            int start = from;
+            int end = Math.min(count, from + batchChunk);
+            chunks.add(batchPool.submit(() -> readChunk(keys, start, end, results, decompress)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Lê as chaves [from, to) com um único read lock, pedido só se alguma não for quente.
+     * Se uma escrita alterou cópias de leitura entretanto, o bloco é relido todo com o lock,
+     * para continuar a ser uma leitura atómica.
+     */
+    private int readChunk(String[] keys, int from, int to, StoredValue[] results, boolean decompress) {
+        for (int i = from; i < to; i++) {
+            hotKeyTracker.record(keys[i]);
+        }
+        long stamp = hotStamp;
+        boolean lockFirst = (stamp & 1) != 0;
+        int found = readChunkOnce(keys, from, to, results, lockFirst);
+        if (!lockFirst && hotStamp != stamp) {
+            found = readChunkOnce(keys, from, to, results, true);
+        }
+        if (decompress) {
+            for (int i = from; i < to; i++) {
+                StoredValue value = results[i];
+                if (value != null && value.isCompressed()) {
+                    results[i] = new StoredValue(value.getData(), value.getVersion());
                 }
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException("Thread interrompida enquanto aguardava a condição", e);
+            }
+        }
+        return found;
+    }
+
+    private int readChunkOnce(String[] keys, int from, int to, StoredValue[] results, boolean lockFirst) {
+        int found = 0;
+        boolean locked = false;
+        if (lockFirst) {
+            storageLock.readLock().lock();
+            locked = true;
+        }
+        try {
+            for (int i = from; i < to; i++) {
+                String key = keys[i];
+                HotValue hot = locked ? null : hotValues.get(key);
+                StoredValue value = hot != null ? hot.value : HotValue.DEMOTED;
+                if (value == HotValue.DEMOTED) {
+                    if (!locked) {
+                        storageLock.readLock().lock();
+                        locked = true;
+                    }
+                    value = storage.get(key);
                 }
+                results[i] = value;
+                found += value != null ? 1 : 0;
             }
         } finally {
-            storageLock.readLock().unlock();
+            if (locked) {
+                storageLock.readLock().unlock();
+            }
         }
+        return found;
     }
 
-    public boolean registerUser(String username, String password) {
+    /**
+     * Transação otimista: aplica as escritas de forma atómica se nenhuma das chaves lidas
+     * mudou desde a versão observada pelo cliente (0 = a chave não existia).
+     * Nada fica bloqueado entre a leitura e o commit; a validação e as escritas ocupam
+     * uma única secção crítica curta, como um MULTIPUT.
+     * Devolve a versão do commit, 0 se a transação abortou por conflito ou -1 se excedeu a quota.
+     */
+    public long transaction(String[] readKeys, long[] readVersions, int readCount,
+                            String[] writeKeys, byte[][] writeValues, int writeCount, UserAccount account) {
+        System.out.println("Iniciando TXN com " + readCount + " leituras e " + writeCount + " escritas...");
+        StoredValue[] encoded = encode(writeValues, writeCount);
+        long version;
         storageLock.writeLock().lock();
         try {
-            if (!users.containsKey(username)) {
-                users.put(username, password);
-                System.out.println("Usuário " + username + " registrado com sucesso.");
-                return true;
+            for (int i = 0; i < readCount; i++) {
+                StoredValue current = storage.get(readKeys[i]);
+                long currentVersion = current != null ? current.getVersion() : 0;
+                if (currentVersion != readVersions[i]) {
+                    System.out.println("TXN abortada: chave " + readKeys[i] + " alterada.");
+                    txnAborts.increment();
+                    return 0;
+                }
+            }
+            if (!reserveQuota(writeKeys, encoded, writeCount, account)) {
+                System.out.println("TXN abortada: quota excedida por " + account.getUsername());
+                txnAborts.increment();
+                return -1;
             }
-            System.out.println("Usuário " + username + " já existe.");
-            return false;
+            version = ++lastVersion;
+            for (int i = 0; i < writeCount; i++) {
+                store(writeKeys[i], encoded[i], version, account);
+            }
+            System.out.println("TXN confirmada com versão " + version);
         } finally {
+            publishHotValues();
+            publishChanges();
             storageLock.writeLock().unlock();
         }
+        txnCommits.increment();
+        for (int i = 0; i < writeCount; i++) {
+            signalWaiters(writeKeys[i]);
+        }
+        wakeConsumers();
+        return version;
     }
 
-    public boolean authenticateUser(String username, String password) {
-        storageLock.readLock().lock();
+    /**
+     * Espera até keyCond ter o valor valueCond e devolve o valor de key, ou MISSING se key não existir.
+     * Devolve null se o prazo (System.nanoTime, 0 = sem prazo) expirar ou se {@code cancelled}
+     * indicar que o cliente já não espera pela resposta.
+     */
+    public StoredValue getWhen(String key, String keyCond, byte[] valueCond, long deadline,
+                               BooleanSupplier cancelled) {
+        System.out.println("Iniciando GETWHEN para chave: " + key + " com condição para chave: " + keyCond);
+        Lock waitLock = waitLock(keyCond);
+        waitLock.lock();
+        KeyWaiters waiters = keyConditions.computeIfAbsent(keyCond, k -> new KeyWaiters(waitLock.newCondition()));
+        waiters.count++;
         try {
-            boolean isAuthenticated = password.equals(users.get(username));
-            if (isAuthenticated) {
-                System.out.println("Usuário " + username + " autenticado com sucesso.");
-            } else {
-                System.out.println("Falha na autenticação de " + username);
+            long lastCheck = System.nanoTime();
+            while (true) {
+                // O registo acima é feito antes desta leitura: um PUT posterior encontra-o e
+                // incrementa changes, que é lido antes da leitura
+                long seen = waiters.changes;
+                storageLock.readLock().lock();
+                try {
+                    StoredValue currentValue = storage.get(keyCond);
+                    if (currentValue != null && currentValue.contentEquals(valueCond)) {
+                        StoredValue resultValue = storage.get(key);
+                        System.out.println("Condição satisfeita. Valor para chave " + key + ": "
+                                + (resultValue != null ? resultValue.getRawLength() + " bytes" : null));
+                        return resultValue != null ? resultValue : MISSING;
+                    }
+                } finally {
+                    storageLock.readLock().unlock();
+                }
+
+                // Sem escritas na chave, o acordar periódico só serve o prazo e o cancelamento
+                while (waiters.changes == seen) {
+                    long now = System.nanoTime();
+                    long timeout = cancelled != null ? lastCheck + CANCEL_CHECK_NANOS - now : Long.MAX_VALUE;
+                    if (deadline != 0) {
+                        if (now - deadline >= 0) {
+                            System.out.println("GETWHEN para chave " + key + " expirou.");
+                            return null;
+                        }
+                        timeout = Math.min(timeout, deadline - now);
+                    }
+                    if (cancelled != null && timeout <= 0) {
+                        lastCheck = now;
+                        // A verificação pode fazer E/S: não bloqueia os PUTs enquanto decorre
+                        waitLock.unlock();
+                        boolean isCancelled;
+                        try {
+                            isCancelled = cancelled.getAsBoolean();
+                        } finally {
+                            waitLock.lock();
+                        }
+                        if (isCancelled) {
+                            System.out.println("GETWHEN para chave " + key + " cancelado.");
+                            return null;
+                        }
+                        continue;
+                    }
+                    try {
+                        if (timeout == Long.MAX_VALUE) {
+                            waiters.changed.await();
+                        } else {
+                            waiters.changed.awaitNanos(timeout);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
             }
-            return isAuthenticated;
         } finally {
-            storageLock.readLock().unlock();
+            if (--waiters.count == 0) {
+                keyConditions.remove(keyCond);
+            }
+            waitLock.unlock();
         }
     }
 
+    public boolean registerUser(String username, String password) {
+        if (users.register(username, password)) {
+            System.out.println("Usuário " + username + " registrado com sucesso.");
+            return true;
+        }
+        System.out.println("Usuário " + username + " já existe.");
+        return false;
+    }
+
+    public boolean authenticateUser(String username, String password) {
+        boolean isAuthenticated = users.authenticate(username, password);
+        if (isAuthenticated) {
+            System.out.println("Usuário " + username + " autenticado com sucesso.");
+        } else {
+            System.out.println("Falha na autenticação de " + username);
+        }
+        return isAuthenticated;
+    }
+
+    public byte[] issueSessionToken(String username) {
+        return users.issueToken(username);
+    }
+
+    /** Utilizador de um token de sessão válido, ou null. */
+    public String resumeSession(byte[] token) {
+        return users.resume(token);
+    }
+
     public static void main(String[] args) {
         if (args.length < 1) {
             System.out.println("Por favor, forneça o número máximo de sessões.");
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * Valor guardado no storage, com a versão do commit que o escreveu.
+ * As versões crescem monotonicamente no servidor; 0 representa uma chave inexistente.
+ * O valor pode estar guardado comprimido (ver Compression); getData devolve sempre o original.
+ * Um valor partilhado aponta para bytes do ValuePool, identificados pelo contentHash.
+ * O dono é a conta do utilizador que o escreveu e que tem os seus bytes na quota.
+ */
+public class StoredValue {
+    private final byte[] data;
+    private final long version;
+    private final boolean compressed;
+    private final int rawLength;
+    private final boolean shared;
+    private final int contentHash;
+    private final UserAccount owner;
+
+    public StoredValue(byte[] data, long version) {
+        this(data, version, false, data.length);
+    }
+
+    public StoredValue(byte[] data, long version, boolean compressed, int rawLength) {
+        this(data, version, compressed, rawLength, false, 0, null);
+    }
+
+    private StoredValue(byte[] data, long version, boolean compressed, int rawLength,
+                        boolean shared, int contentHash, UserAccount owner) {
+        this.data = data;
+        this.version = version;
+        this.compressed = compressed;
+        this.rawLength = rawLength;
+        this.shared = shared;
+        this.contentHash = contentHash;
+        this.owner = owner;
+    }
+
+    public StoredValue withVersion(long version, UserAccount owner) {
+        return new StoredValue(data, version, compressed, rawLength, shared, contentHash, owner);
+    }
+
+    /** O mesmo valor, a apontar para outra cópia dos mesmos bytes. */
+    public StoredValue withData(byte[] data, long version, UserAccount owner) {
+        return new StoredValue(data, version, compressed, rawLength, shared, contentHash, owner);
+    }
+
+    public StoredValue asShared(int contentHash) {
+        return new StoredValue(data, version, compressed, rawLength, true, contentHash, owner);
+    }
+
+    /** O valor original, descomprimido se necessário. */
+    public byte[] getData() {
+        return compressed ? Compression.decompress(data, rawLength) : data;
+    }
+
+    /** Compara com um valor original; só descomprime quando os comprimentos coincidem. */
+    public boolean contentEquals(byte[] other) {
+        if (other == null || other.length != rawLength) {
+            return false;
+        }
+        return Arrays.equals(getData(), other);
+    }
+
+    /** Os bytes tal como estão guardados (comprimidos se isCompressed). */
+    public byte[] getStoredData() {
+        return data;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public int getContentHash() {
+        return contentHash;
+    }
+
+    /** Conta que tem o valor na quota, ou null se ainda não foi guardado. */
+    public UserAccount getOwner() {
+        return owner;
+    }
+}
@@ -0,0 +1,759 @@
+import java.io.*;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Teste de stress da concorrência do servidor, para validar alterações ao locking.
+ * Vários clientes fazem PUT/GET/MULTIPUT/MULTIGET/GETWHEN sobre poucas chaves; cada operação fica
+ * registada com os instantes de invocação e de resposta e, no fim, o histórico é verificado:
+ *  - linearizabilidade de cada chave como registo (todos os valores escritos são únicos);
+ *    o MULTIGET lê cada chave separadamente no servidor, por isso é verificado chave a chave;
+ *  - wake-ups perdidos: GETWHENs que expiraram enquanto a condição esteve verdadeira;
+ *  - atomicidade dos MULTIPUT entre chaves quentes, servidas pela cópia de leitura sem lock;
+ *  - sessões: ligações acima do máximo de sessões têm de ser todas servidas.
+ * Termina com código 1 se encontrar alguma violação.
+ *
+ * Uso: java StressTest [clientes] [segundos] [chaves]
+ */
+public class StressTest {
+    private static final byte CMD_PUT = 1;
+    private static final byte CMD_GET = 2;
+    private static final byte CMD_EXIT = 3;
+    private static final byte CMD_LOGIN = 4;
+    private static final byte CMD_REGISTER = 5;
+    private static final byte CMD_MULTIPUT = 6;
+    private static final byte CMD_MULTIGET = 7;
+    private static final byte CMD_GETWHEN = 8;
+    private static final byte CMD_STATS = 9;
+    private static final byte CMD_DEADLINE = 10;
+
+    private static final String[] NAMES = {"?", "PUT", "GET", "EXIT", "", "", "MULTIPUT", "MULTIGET", "GETWHEN"};
+
+    private static final int GATES = 2;
+    private static final int WAITERS_PER_GATE = 4;
+    // Tempo durante o qual cada valor de uma gate se mantém: o GETWHEN só reavalia a condição
+    // quando é sinalizado, por isso um sinal perdido deixa-o à espera até expirar
+    private static final long GATE_HOLD_MS = 50;
+    private static final long WAKEUP_SLACK_NANOS = 25_000_000L;
+    private static final int GATE_TIMEOUT_MS = 1000;
+    private static final int DATA_GETWHEN_TIMEOUT_MS = 20;
+    // Chaves frias escritas entre as duas chaves quentes de cada lote
+    private static final int BATCH_FILLER = 2048;
+
+    /** Uma operação do histórico. Para leituras, values[i] é o valor devolvido (null = ausente). */
+    private static class Op {
+        final byte type;
+        final long invoke;
+        long response;
+        final String[] keys;
+        final String[] values;
+        boolean ok;
+        String condKey;
+        String condValue;
+
+        Op(byte type, long invoke, String[] keys, String[] values) {
+            this.type = type;
+            this.invoke = invoke;
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /** Leitura ou escrita de uma chave, já separada das operações com várias chaves. */
+    private static class Access {
+        final boolean write;
+        final String value;
+        final long invoke;
+        final long response;
+
+        Access(boolean write, String value, long invoke, long response) {
+            this.write = write;
+            this.value = value;
+            this.invoke = invoke;
+            this.response = response;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int keyCount = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        boolean failed;
+        try {
+            selfCheck();
+            console.printf("Clientes: %d, chaves: %d, %d gates com %d GETWHENs cada, %d s%n",
+                    clients, keyCount, GATES, WAITERS_PER_GATE, seconds);
+            failed = run(console, clients, seconds, keyCount);
+            failed |= runBatchAtomicity(console, Math.max(2, clients / 2), seconds);
+            failed |= runSessions(console, 4, 64);
+        } finally {
+            System.setOut(console);
+        }
+        console.println(failed ? "FALHOU" : "OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static boolean run(PrintStream console, int clients, int seconds, int keyCount) throws Exception {
+        int port = startServer(clients + GATES * (WAITERS_PER_GATE + 1) + 1);
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "k" + i;
+        }
+        String[] gates = new String[GATES];
+        for (int i = 0; i < GATES; i++) {
+            gates[i] = "gate" + i;
+        }
+
+        // Valores iniciais: assim nenhuma leitura válida devolve "ausente"
+        List<Op> history = new ArrayList<>();
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (String key : concat(keys, gates)) {
+                history.add(put(out, in, key, "init-" + key));
+            }
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<List<Op>> histories = Collections.synchronizedList(new ArrayList<>());
+        List<Long> wakeups = Collections.synchronizedList(new ArrayList<>());
+        LongAdder errors = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            threads.add(new Thread(() -> {
+                List<Op> ops = new ArrayList<>();
+                try {
+                    runClient(port, id, keys, end, ops);
+                } catch (IOException e) {
+                    errors.increment();
+                    System.err.println("Cliente " + id + ": " + e.getMessage());
+                }
+                histories.add(ops);
+            }));
+        }
+
+        AtomicInteger[] nextToken = new AtomicInteger[GATES];
+        for (int g = 0; g < GATES; g++) {
+            nextToken[g] = new AtomicInteger(1);
+            String gate = gates[g];
+            AtomicInteger next = nextToken[g];
+            threads.add(new Thread(() -> {
+                List<Op> ops = new ArrayList<>();
+                try {
+                    runGateWriter(port, gate, next, end, ops);
+                } catch (IOException | InterruptedException e) {
+                    errors.increment();
+                    System.err.println("Gate " + gate + ": " + e.getMessage());
+                }
+                histories.add(ops);
+            }));
+            for (int w = 0; w < WAITERS_PER_GATE; w++) {
+                threads.add(new Thread(() -> {
+                    List<Op> ops = new ArrayList<>();
+                    try {
+                        runGateWaiter(port, gate, next, end, ops);
+                    } catch (IOException e) {
+                        errors.increment();
+                        System.err.println("Espera em " + gate + ": " + e.getMessage());
+                    }
+                    histories.add(ops);
+                }));
+            }
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (List<Op> ops : histories) {
+            history.addAll(ops);
+        }
+        int[] counts = new int[NAMES.length];
+        for (Op op : history) {
+            counts[op.type]++;
+        }
+        StringBuilder mix = new StringBuilder();
+        for (int t = 0; t < NAMES.length; t++) {
+            if (counts[t] > 0) {
+                mix.append(mix.length() == 0 ? "" : ", ").append(NAMES[t]).append(' ').append(counts[t]);
+            }
+        }
+        console.printf("Operações: %d (%s), %.0f ops/s, erros de E/S: %d%n",
+                history.size(), mix, history.size() / (elapsed / 1e9), errors.sum());
+
+        List<String> violations = checkLinearizable(history);
+        console.println(violations.isEmpty()
+                ? "Linearizabilidade: OK"
+                : "Linearizabilidade: " + violations.size() + " violações");
+        printSome(console, violations);
+
+        List<String> lost = checkWakeups(history, gates, wakeups);
+        long[] latencies = wakeups.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (latencies.length > 0) {
+            console.printf("GETWHEN acordados: %d, latência desde o PUT p50=%d µs p99=%d µs max=%d µs%n",
+                    latencies.length, latencies[latencies.length / 2] / 1000,
+                    latencies[(int) Math.min(latencies.length - 1, latencies.length * 0.99)] / 1000,
+                    latencies[latencies.length - 1] / 1000);
+        }
+        console.println(lost.isEmpty() ? "Wake-ups perdidos: 0" : "Wake-ups perdidos: " + lost.size());
+        printSome(console, lost);
+
+        return !violations.isEmpty() || !lost.isEmpty() || errors.sum() > 0;
+    }
+
+    private static void runClient(int port, int id, String[] keys, long end, List<Op> ops) throws IOException {
+        Random random = new Random(id);
+        Map<String, String> lastSeen = new HashMap<>();
+        int seq = 0;
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (System.nanoTime() < end) {
+                int choice = random.nextInt(100);
+                Op op;
+                if (choice < 30) {
+                    op = put(out, in, keys[random.nextInt(keys.length)], "c" + id + "-" + (seq++));
+                } else if (choice < 60) {
+                    op = get(out, in, keys[random.nextInt(keys.length)]);
+                } else if (choice < 72) {
+                    String[] batch = distinctKeys(keys, random);
+                    String[] values = new String[batch.length];
+                    for (int i = 0; i < batch.length; i++) {
+                        values[i] = "c" + id + "-" + (seq++);
+                    }
+                    op = multiPut(out, in, batch, values);
+                } else if (choice < 87) {
+                    op = multiGet(out, in, distinctKeys(keys, random));
+                } else {
+                    String condKey = keys[random.nextInt(keys.length)];
+                    String condValue = lastSeen.getOrDefault(condKey, "init-" + condKey);
+                    op = getWhen(out, in, keys[random.nextInt(keys.length)], condKey, condValue,
+                            DATA_GETWHEN_TIMEOUT_MS);
+                }
+                ops.add(op);
+                if (op.type != CMD_PUT && op.type != CMD_MULTIPUT) {
+                    for (int i = 0; i < op.keys.length; i++) {
+                        if (op.values[i] != null) {
+                            lastSeen.put(op.keys[i], op.values[i]);
+                        }
+                    }
+                }
+            }
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+    }
+
+    /** Escreve tokens sucessivos numa gate, cada um mantido durante GATE_HOLD_MS. */
+    private static void runGateWriter(int port, String gate, AtomicInteger next, long end, List<Op> ops)
+            throws IOException, InterruptedException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (System.nanoTime() < end) {
+                Thread.sleep(GATE_HOLD_MS);
+                int token = next.get();
+                ops.add(put(out, in, gate, "t" + token));
+                next.incrementAndGet();
+            }
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+    }
+
+    /** Espera, com GETWHEN, pelo próximo token que vai ser escrito na gate. */
+    private static void runGateWaiter(int port, String gate, AtomicInteger next, long end, List<Op> ops)
+            throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (System.nanoTime() < end) {
+                String token = "t" + next.get();
+                ops.add(getWhen(out, in, gate, gate, token, GATE_TIMEOUT_MS));
+            }
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+    }
+
+    // ---- Operações ----
+
+    private static Op put(DataOutputStream out, DataInputStream in, String key, String value) throws IOException {
+        Op op = new Op(CMD_PUT, System.nanoTime(), new String[]{key}, new String[]{value});
+        out.writeByte(CMD_PUT);
+        writePair(out, key, value);
+        out.flush();
+        op.ok = in.readBoolean();
+        op.response = System.nanoTime();
+        return op;
+    }
+
+    private static Op get(DataOutputStream out, DataInputStream in, String key) throws IOException {
+        Op op = new Op(CMD_GET, System.nanoTime(), new String[]{key}, new String[1]);
+        out.writeByte(CMD_GET);
+        out.writeUTF(key);
+        out.flush();
+        op.ok = in.readBoolean();
+        if (op.ok) {
+            op.values[0] = readValue(in);
+        }
+        op.response = System.nanoTime();
+        return op;
+    }
+
+    private static Op multiPut(DataOutputStream out, DataInputStream in, String[] keys, String[] values)
+            throws IOException {
+        Op op = new Op(CMD_MULTIPUT, System.nanoTime(), keys, values);
+        out.writeByte(CMD_MULTIPUT);
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            writePair(out, keys[i], values[i]);
+        }
+        out.flush();
+        op.ok = in.readBoolean();
+        op.response = System.nanoTime();
+        return op;
+    }
+
+    private static Op multiGet(DataOutputStream out, DataInputStream in, String[] keys) throws IOException {
+        Op op = new Op(CMD_MULTIGET, System.nanoTime(), keys, new String[keys.length]);
+        out.writeByte(CMD_MULTIGET);
+        out.writeInt(keys.length);
+        for (String key : keys) {
+            out.writeUTF(key);
+        }
+        out.flush();
+        int found = in.readInt();
+        for (int i = 0; i < found; i++) {
+            String key = in.readUTF();
+            String value = readValue(in);
+            for (int k = 0; k < keys.length; k++) {
+                if (keys[k].equals(key)) {
+                    op.values[k] = value;
+                }
+            }
+        }
+        op.ok = true;
+        op.response = System.nanoTime();
+        return op;
+    }
+
+    private static Op getWhen(DataOutputStream out, DataInputStream in, String key, String condKey,
+                              String condValue, int timeoutMillis) throws IOException {
+        Op op = new Op(CMD_GETWHEN, System.nanoTime(), new String[]{key}, new String[1]);
+        op.condKey = condKey;
+        op.condValue = condValue;
+        out.writeByte(CMD_DEADLINE);
+        out.writeInt(timeoutMillis);
+        out.writeByte(CMD_GETWHEN);
+        out.writeUTF(key);
+        writePair(out, condKey, condValue);
+        out.flush();
+        op.ok = in.readBoolean();
+        if (op.ok) {
+            op.values[0] = readValue(in);
+        }
+        op.response = System.nanoTime();
+        return op;
+    }
+
+    private static void writePair(DataOutputStream out, String key, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeUTF(key);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readValue(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- Verificação ----
+
+    /**
+     * Verifica cada chave como um registo linearizável, com o algoritmo de zonas de Gibbons e Korach
+     * (válido porque cada valor é escrito uma única vez). Para cada valor, o cluster é a escrita e as
+     * leituras que o devolveram; a zona vai da menor resposta à maior invocação do cluster
+     * ("forward" se a menor resposta vem antes, "backward" caso contrário). O histórico é
+     * linearizável se cada leitura devolve um valor escrito, não termina antes de essa escrita
+     * começar, as zonas forward não se sobrepõem e nenhuma zona backward está dentro de uma forward.
+     */
+    static List<String> checkLinearizable(List<Op> history) {
+        Map<String, List<Access>> byKey = new HashMap<>();
+        List<String> violations = new ArrayList<>();
+        for (Op op : history) {
+            boolean write = op.type == CMD_PUT || op.type == CMD_MULTIPUT;
+            if (write && !op.ok) {
+                violations.add(NAMES[op.type] + " " + Arrays.toString(op.keys) + " falhou");
+                continue;
+            }
+            if (op.type == CMD_GETWHEN) {
+                if (!op.ok) {
+                    continue;
+                }
+                // A condição e o valor são lidos no mesmo instante, dentro do intervalo do pedido
+                byKey.computeIfAbsent(op.condKey, k -> new ArrayList<>())
+                        .add(new Access(false, op.condValue, op.invoke, op.response));
+            }
+            for (int i = 0; i < op.keys.length; i++) {
+                byKey.computeIfAbsent(op.keys[i], k -> new ArrayList<>())
+                        .add(new Access(write, op.values[i], op.invoke, op.response));
+            }
+        }
+        for (Map.Entry<String, List<Access>> entry : byKey.entrySet()) {
+            checkRegister(entry.getKey(), entry.getValue(), violations);
+        }
+        return violations;
+    }
+
+    private static void checkRegister(String key, List<Access> accesses, List<String> violations) {
+        Map<String, Access> writes = new HashMap<>();
+        for (Access access : accesses) {
+            if (access.write && writes.put(access.value, access) != null) {
+                violations.add(key + ": valor " + access.value + " escrito duas vezes");
+                return;
+            }
+        }
+
+        // Por valor: [menor resposta, maior invocação] do cluster
+        Map<String, long[]> clusters = new HashMap<>();
+        for (Access access : accesses) {
+            if (!access.write) {
+                Access write = access.value != null ? writes.get(access.value) : null;
+                if (write == null) {
+                    violations.add(key + ": leitura devolveu " + access.value + ", que nunca foi escrito");
+                    continue;
+                }
+                if (access.response < write.invoke) {
+                    violations.add(key + ": leitura de " + access.value + " terminou antes da escrita começar");
+                    continue;
+                }
+            }
+            long[] zone = clusters.computeIfAbsent(access.value, v -> new long[]{Long.MAX_VALUE, Long.MIN_VALUE});
+            zone[0] = Math.min(zone[0], access.response);
+            zone[1] = Math.max(zone[1], access.invoke);
+        }
+
+        List<long[]> forward = new ArrayList<>();
+        List<long[]> backward = new ArrayList<>();
+        List<String> forwardValues = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : clusters.entrySet()) {
+            long[] zone = entry.getValue();
+            if (zone[0] < zone[1]) {
+                forward.add(zone);
+                forwardValues.add(entry.getKey());
+            } else {
+                backward.add(new long[]{zone[1], zone[0]});
+            }
+        }
+        Integer[] order = new Integer[forward.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> forward.get(i)[0]));
+        long[] lows = new long[order.length];
+        long[] highs = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            lows[i] = forward.get(order[i])[0];
+            highs[i] = forward.get(order[i])[1];
+            if (i > 0 && lows[i] < highs[i - 1]) {
+                violations.add(key + ": os valores " + forwardValues.get(order[i - 1]) + " e "
+                        + forwardValues.get(order[i]) + " foram observados por ordens incompatíveis");
+            }
+        }
+        for (long[] zone : backward) {
+            // Zona forward com o maior início anterior ao início desta
+            int index = Arrays.binarySearch(lows, zone[0]);
+            index = index >= 0 ? index - 1 : -index - 2;
+            while (index >= 0 && lows[index] == zone[0]) {
+                index--;
+            }
+            if (index >= 0 && zone[1] < highs[index]) {
+                violations.add(key + ": leitura obsoleta dentro do intervalo de "
+                        + forwardValues.get(order[index]));
+            }
+        }
+    }
+
+    /**
+     * Um GETWHEN que expirou é um wake-up perdido se, enquanto esperava, a condição esteve
+     * verdadeira durante mais de WAKEUP_SLACK_NANOS: desde a resposta ao PUT do token até à
+     * invocação do PUT seguinte na mesma gate.
+     */
+    private static List<String> checkWakeups(List<Op> history, String[] gates, List<Long> wakeups) {
+        Set<String> gateSet = new HashSet<>(Arrays.asList(gates));
+        Map<String, List<Op>> puts = new HashMap<>();
+        for (Op op : history) {
+            if (op.type == CMD_PUT && gateSet.contains(op.keys[0])) {
+                puts.computeIfAbsent(op.keys[0], k -> new ArrayList<>()).add(op);
+            }
+        }
+        for (List<Op> ops : puts.values()) {
+            ops.sort(Comparator.comparingLong(op -> op.invoke));
+        }
+
+        List<String> lost = new ArrayList<>();
+        for (Op op : history) {
+            if (op.type != CMD_GETWHEN || !gateSet.contains(op.condKey)) {
+                continue;
+            }
+            List<Op> gatePuts = puts.get(op.condKey);
+            int index = -1;
+            for (int i = 0; i < gatePuts.size(); i++) {
+                if (gatePuts.get(i).values[0].equals(op.condValue)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                continue;
+            }
+            Op written = gatePuts.get(index);
+            if (op.ok) {
+                if (!op.condValue.equals(op.values[0])) {
+                    lost.add("GETWHEN em " + op.condKey + " devolveu " + op.values[0] + " em vez de " + op.condValue);
+                } else if (op.invoke < written.invoke) {
+                    wakeups.add(Math.max(0, op.response - written.response));
+                }
+                continue;
+            }
+            long held = index + 1 < gatePuts.size() ? gatePuts.get(index + 1).invoke : Long.MAX_VALUE;
+            long from = Math.max(written.response, op.invoke);
+            long to = Math.min(held, op.response);
+            if (to - from > WAKEUP_SLACK_NANOS) {
+                lost.add(String.format("GETWHEN em %s=%s expirou com a condição verdadeira durante %d ms",
+                        op.condKey, op.condValue, (to - from) / 1_000_000));
+            }
+        }
+        return lost;
+    }
+
+    /** Confirma que o verificador deteta uma leitura obsoleta e aceita um histórico correto. */
+    private static void selfCheck() {
+        List<Op> history = new ArrayList<>();
+        history.add(access(CMD_PUT, "a", 0, 10));
+        history.add(access(CMD_PUT, "b", 20, 30));
+        history.add(access(CMD_GET, "b", 25, 40));
+        if (!checkLinearizable(history).isEmpty()) {
+            throw new IllegalStateException("Verificador rejeitou um histórico linearizável");
+        }
+        history.add(access(CMD_GET, "a", 50, 60));
+        if (checkLinearizable(history).isEmpty()) {
+            throw new IllegalStateException("Verificador não detetou uma leitura obsoleta");
+        }
+    }
+
+    private static Op access(byte type, String value, long invoke, long response) {
+        Op op = new Op(type, invoke, new String[]{"x"}, new String[]{value});
+        op.response = response;
+        op.ok = true;
+        return op;
+    }
+
+    // ---- Lotes em chaves quentes ----
+
+    /**
+     * Um escritor faz MULTIPUT de um contador crescente em duas chaves e os leitores fazem GET de
+     * uma e depois da outra: a segunda leitura nunca pode ser menor do que a primeira, e um
+     * MULTIGET das duas devolve sempre o mesmo valor. As leituras tornam as duas chaves quentes,
+     * por isso passam a ser servidas pela cópia de leitura sem o storageLock. Entre as duas, o lote
+     * escreve chaves frias, para alargar o intervalo em que só a primeira está escrita.
+     */
+    private static boolean runBatchAtomicity(PrintStream console, int readers, int seconds) throws Exception {
+        // As chaves quentes só aparecem no relatório do administrador
+        System.setProperty("sd.stats.admin", "admin");
+        System.setProperty("sd.users.file", "");
+        int port;
+        try {
+            port = startServer(readers + 2);
+        } finally {
+            System.clearProperty("sd.stats.admin");
+            System.clearProperty("sd.users.file");
+        }
+        String[] pair = {"pa", "pb"};
+        String[] batch = new String[BATCH_FILLER + 2];
+        batch[0] = pair[0];
+        for (int i = 1; i <= BATCH_FILLER; i++) {
+            batch[i] = "fill" + i;
+        }
+        batch[batch.length - 1] = pair[1];
+        // Pelo menos duas janelas do detetor de chaves quentes
+        long end = System.nanoTime() + Math.max(3, seconds) * 1_000_000_000L;
+        LongAdder reads = new LongAdder();
+        LongAdder errors = new LongAdder();
+        List<String> torn = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(() -> {
+            try (Socket socket = new Socket("localhost", port)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                for (long n = 0; n == 0 || System.nanoTime() < end; n++) {
+                    String[] values = new String[batch.length];
+                    Arrays.fill(values, Long.toString(n));
+                    multiPut(out, in, batch, values);
+                }
+                out.writeByte(CMD_EXIT);
+                out.flush();
+            } catch (IOException e) {
+                errors.increment();
+                System.err.println("Escritor do lote: " + e.getMessage());
+            }
+        }));
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    while (System.nanoTime() < end) {
+                        Op first = get(out, in, pair[0]);
+                        Op second = get(out, in, pair[1]);
+                        Op both = multiGet(out, in, pair);
+                        reads.add(3);
+                        if (!first.ok || !second.ok) {
+                            continue;
+                        }
+                        if (Long.parseLong(second.values[0]) < Long.parseLong(first.values[0])) {
+                            torn.add("GET pa=" + first.values[0] + " e depois GET pb=" + second.values[0]);
+                        }
+                        if (!Objects.equals(both.values[0], both.values[1])) {
+                            torn.add("MULTIGET pa=" + both.values[0] + " pb=" + both.values[1]);
+                        }
+                    }
+                    out.writeByte(CMD_EXIT);
+                    out.flush();
+                } catch (IOException e) {
+                    errors.increment();
+                    System.err.println("Leitor do lote: " + e.getMessage());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        boolean hot;
+        try (Socket socket = new Socket("localhost", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (byte command : new byte[]{CMD_REGISTER, CMD_LOGIN}) {
+                out.writeByte(command);
+                out.writeUTF("admin");
+                out.writeUTF("admin");
+            }
+            out.writeByte(CMD_STATS);
+            out.flush();
+            in.readBoolean();
+            in.readBoolean();
+            String stats = readValue(in);
+            hot = stats.contains("  pa: ") && stats.contains("  pb: ");
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+        console.printf("Lotes em chaves quentes: %d leituras (chaves quentes: %s), leituras parciais: %d%n",
+                reads.sum(), hot ? "sim" : "não", torn.size());
+        printSome(console, torn);
+        return !torn.isEmpty() || errors.sum() > 0;
+    }
+
+    // ---- Sessões ----
+
+    /**
+     * Abre mais ligações do que o máximo de sessões; cada uma faz um PUT e sai.
+     * Uma sessão libertada sem acordar quem espera deixa ligações penduradas.
+     */
+    private static boolean runSessions(PrintStream console, int maxSessions, int connections) throws Exception {
+        int port = startServer(maxSessions);
+        LongAdder served = new LongAdder();
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int id = c;
+            threads[c] = new Thread(() -> {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setSoTimeout(10_000);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    if (put(out, in, "s" + id, "v").ok) {
+                        served.increment();
+                    }
+                    out.writeByte(CMD_EXIT);
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("Sessão " + id + ": " + e.getMessage());
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        console.printf("Sessões: %d/%d ligações servidas com máximo de %d sessões em %d ms%n",
+                served.sum(), connections, maxSessions, (System.nanoTime() - start) / 1_000_000);
+        return served.sum() != connections;
+    }
+
+    // ---- Auxiliares ----
+
+    private static String[] distinctKeys(String[] keys, Random random) {
+        List<String> shuffled = new ArrayList<>(Arrays.asList(keys));
+        Collections.shuffle(shuffled, random);
+        return shuffled.subList(0, 1 + random.nextInt(Math.min(4, keys.length))).toArray(new String[0]);
+    }
+
+    private static String[] concat(String[] a, String[] b) {
+        String[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static void printSome(PrintStream console, List<String> messages) {
+        for (int i = 0; i < Math.min(10, messages.size()); i++) {
+            console.println("  " + messages.get(i));
+        }
+        if (messages.size() > 10) {
+            console.println("  ... mais " + (messages.size() - 10));
+        }
+    }
+
+    private static int startServer(int maxSessions) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(maxSessions, port);
+        Thread thread = new Thread(server::start, "server");
+        thread.setDaemon(true);
+        thread.start();
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(CMD_EXIT);
+                return port;
+            } catch (ConnectException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket sem locks (GCRA): o estado é apenas o instante teórico em que o balde
+ * volta a estar cheio, atualizado por CAS.
+ * Os instantes e o intervalo entre tokens estão em 1/1024 de nanossegundo, para que ritmos
+ * acima de 10^8 por segundo não sejam arredondados a um número inteiro de nanos por token.
+ * Os instantes só são comparados por diferenças, por isso o deslocamento de System.nanoTime
+ * pode dar a volta sem problema.
+ */
+public class TokenBucket {
+    private static final int SCALE_BITS = 10;
+
+    private final long unitsPerToken;
+    private final long burstUnits;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param ratePerSecond tokens repostos por segundo (até ~10^12)
+     * @param burst         capacidade máxima do balde
+     */
+    public TokenBucket(long ratePerSecond, long burst) {
+        this.unitsPerToken = Math.max(1, (1_000_000_000L << SCALE_BITS) / ratePerSecond);
+        this.burstUnits = Math.max(1, burst) * unitsPerToken;
+        this.fullAt = new AtomicLong(now());
+    }
+
+    private static long now() {
+        return System.nanoTime() << SCALE_BITS;
+    }
+
+    /**
+     * Tenta retirar {@code tokens} do balde.
+     * Devolve 0 se conseguiu, ou quantos nanos faltam até haver tokens suficientes.
+     * Um pedido maior do que o balde passa quando este está cheio, ficando em dívida.
+     */
+    public long tryAcquire(long tokens) {
+        while (true) {
+            long now = now();
+            long current = fullAt.get();
+            long base = current - now > 0 ? current : now;
+            long next = base + tokens * unitsPerToken;
+            long wait = next - burstUnits - now;
+            if (wait > 0 && current - now > 0) {
+                return (wait + (1L << SCALE_BITS) - 1) >>> SCALE_BITS;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /** Retira tokens incondicionalmente (por exemplo, bytes de uma resposta já enviada). */
+    public void charge(long tokens) {
+        while (true) {
+            long now = now();
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + tokens * unitsPerToken;
+            if (fullAt.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+}
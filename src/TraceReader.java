@@ -0,0 +1,83 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Lê um ficheiro escrito pelo TraceWriter (o formato está descrito lá). */
+public class TraceReader implements Closeable {
+    private final DataInputStream in;
+    private final List<String> dictionary;
+    private long lastTimeMicros;
+
+    public TraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.dictionary = new ArrayList<>();
+        byte[] magic = new byte[TraceWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, TraceWriter.MAGIC)) {
+            throw new IOException("Não é um ficheiro de trace");
+        }
+        byte version = this.in.readByte();
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("Versão de trace não suportada: " + version);
+        }
+    }
+
+    /** Devolve o próximo registo, ou null no fim do ficheiro (inclui um último registo truncado). */
+    public TraceRecord next() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        try {
+            long delta = unzigzag(readVarLong(first));
+            long time = lastTimeMicros + delta;
+            lastTimeMicros = time;
+            int connection = (int) readVarLong(in.readUnsignedByte());
+            byte command = in.readByte();
+            int count = (int) readVarLong(in.readUnsignedByte());
+            String[] keys = new String[count];
+            int[] sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                long ref = readVarLong(in.readUnsignedByte());
+                if (ref == 0) {
+                    byte[] encoded = new byte[(int) readVarLong(in.readUnsignedByte())];
+                    in.readFully(encoded);
+                    keys[i] = new String(encoded, StandardCharsets.UTF_8);
+                    if (dictionary.size() < TraceWriter.MAX_DICTIONARY) {
+                        dictionary.add(keys[i]);
+                    }
+                } else {
+                    keys[i] = dictionary.get((int) (ref - 1));
+                }
+                sizes[i] = (int) (readVarLong(in.readUnsignedByte()) - 1);
+            }
+            long service = readVarLong(in.readUnsignedByte());
+            return new TraceRecord(time, connection, command, keys, sizes, service);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private long readVarLong(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Um comando capturado pelo TraceWriter.
+ * Para cada chave guarda-se o tamanho do valor enviado (PUT, MULTIPUT, escritas de TXN,
+ * valor da condição de GETWHEN) ou -1 quando a chave só é lida.
+ */
+public class TraceRecord {
+    private final long timeMicros;
+    private final int connection;
+    private final byte command;
+    private final String[] keys;
+    private final int[] sizes;
+    private final long serviceMicros;
+
+    public TraceRecord(long timeMicros, int connection, byte command, String[] keys, int[] sizes,
+                       long serviceMicros) {
+        this.timeMicros = timeMicros;
+        this.connection = connection;
+        this.command = command;
+        this.keys = keys;
+        this.sizes = sizes;
+        this.serviceMicros = serviceMicros;
+    }
+
+    /** Instante de chegada do comando, em microssegundos desde o início da captura. */
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    public int getConnection() {
+        return connection;
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public String[] getKeys() {
+        return keys;
+    }
+
+    public int[] getSizes() {
+        return sizes;
+    }
+
+    /** Tempo que o servidor levou a tratar o comando. */
+    public long getServiceMicros() {
+        return serviceMicros;
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Reproduz contra o servidor um trace capturado pelo TraceWriter (modo "replay" do ClientBatch).
+ * Cada ligação do trace é reproduzida por uma thread com o seu próprio socket, pela ordem original.
+ * Velocidades: "original" respeita os instantes do trace, um número N reproduz N vezes mais depressa
+ * e "max" envia cada pedido assim que chega a resposta do anterior.
+ *
+ * Os valores são sintéticos, com os tamanhos registados. Com ritmo imposto, a latência é medida a
+ * partir do instante em que o pedido devia ter sido enviado, para incluir o atraso acumulado quando
+ * o servidor não acompanha o ritmo do trace.
+ */
+public class TraceReplay {
+    private static final byte CMD_PUT = 1;
+    private static final byte CMD_GET = 2;
+    private static final byte CMD_EXIT = 3;
+    private static final byte CMD_MULTIPUT = 6;
+    private static final byte CMD_MULTIGET = 7;
+    private static final byte CMD_GETWHEN = 8;
+    private static final byte CMD_STATS = 9;
+    private static final byte CMD_DEADLINE = 10;
+    private static final byte CMD_GETVERSION = 11;
+    private static final byte CMD_TXN = 12;
+    private static final byte CMD_FEATURES = 13;
+
+    private static final int FEATURE_COMPRESSION = 1;
+    private static final byte ENCODING_DEFLATE = 1;
+
+    private static final long SPIN_NANOS = 1_000_000L;
+
+    private static final String[] COMMAND_NAMES = {
+            "?", "PUT", "GET", "EXIT", "LOGIN", "REGISTER", "MULTIPUT", "MULTIGET",
+            "GETWHEN", "STATS", "DEADLINE", "GETVERSION", "TXN", "FEATURES"};
+
+    private final String host;
+    private final int port;
+    // 0 = sem ritmo (max)
+    private final double speed;
+
+    public TraceReplay(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    /** Resultados de uma ligação: latências (ns) por comando e atraso face ao ritmo do trace. */
+    private static class ConnectionResult {
+        final long[][] latencies = new long[COMMAND_NAMES.length][];
+        final int[] counts = new int[COMMAND_NAMES.length];
+        long[] lags = new long[64];
+        int lagCount;
+        int errors;
+
+        void add(byte command, long latency) {
+            long[] values = latencies[command];
+            if (values == null) {
+                values = latencies[command] = new long[64];
+            } else if (counts[command] == values.length) {
+                values = latencies[command] = Arrays.copyOf(values, values.length * 2);
+            }
+            values[counts[command]++] = latency;
+        }
+
+        void addLag(long lag) {
+            if (lagCount == lags.length) {
+                lags = Arrays.copyOf(lags, lags.length * 2);
+            }
+            lags[lagCount++] = lag;
+        }
+    }
+
+    public void run(String file) throws IOException, InterruptedException {
+        Map<Integer, List<TraceRecord>> connections = new LinkedHashMap<>();
+        long firstTime = Long.MAX_VALUE;
+        int total = 0;
+        try (TraceReader reader = new TraceReader(new FileInputStream(file))) {
+            TraceRecord record;
+            while ((record = reader.next()) != null) {
+                connections.computeIfAbsent(record.getConnection(), id -> new ArrayList<>()).add(record);
+                firstTime = Math.min(firstTime, record.getTimeMicros());
+                total++;
+            }
+        }
+        if (total == 0) {
+            System.out.println("Trace vazio.");
+            return;
+        }
+        System.out.printf("Trace: %d pedidos em %d ligações, velocidade %s%n",
+                total, connections.size(), speed == 0 ? "max" : speed + "x");
+
+        long start = System.nanoTime() + 100_000_000L;
+        long traceStart = firstTime;
+        List<Thread> threads = new ArrayList<>();
+        List<ConnectionResult> results = Collections.synchronizedList(new ArrayList<>());
+        for (List<TraceRecord> records : connections.values()) {
+            Thread thread = new Thread(() -> {
+                ConnectionResult result = new ConnectionResult();
+                try {
+                    replayConnection(records, start, traceStart, result);
+                } catch (IOException e) {
+                    System.err.println("Erro na ligação: " + e.getMessage());
+                    result.errors++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                results.add(result);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(results, Math.max(1, System.nanoTime() - start));
+    }
+
+    private void replayConnection(List<TraceRecord> records, long start, long traceStart,
+                                  ConnectionResult result) throws IOException, InterruptedException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // Versões vistas por GETVERSION, usadas nas leituras das transações seguintes
+            Map<String, Long> versions = new HashMap<>();
+            boolean compression = false;
+            byte[] payload = new byte[0];
+
+            for (TraceRecord record : records) {
+                long target = start;
+                if (speed > 0) {
+                    target += (long) ((record.getTimeMicros() - traceStart) * 1000 / speed);
+                    waitUntil(target);
+                }
+                long sent = System.nanoTime();
+                if (speed > 0) {
+                    result.addLag(sent - target);
+                }
+
+                byte command = record.getCommand();
+                String[] keys = record.getKeys();
+                int[] sizes = record.getSizes();
+                for (int size : sizes) {
+                    if (size > payload.length) {
+                        payload = new byte[Math.max(size, payload.length * 2)];
+                        Arrays.fill(payload, (byte) 'x');
+                    }
+                }
+
+                switch (command) {
+                    case CMD_PUT:
+                        out.writeByte(CMD_PUT);
+                        writePair(out, keys[0], sizes[0], payload);
+                        out.flush();
+                        in.readBoolean();
+                        break;
+                    case CMD_GET:
+                        out.writeByte(CMD_GET);
+                        out.writeUTF(keys[0]);
+                        out.flush();
+                        if (in.readBoolean()) {
+                            skipValue(in, compression);
+                        }
+                        break;
+                    case CMD_MULTIPUT:
+                        out.writeByte(CMD_MULTIPUT);
+                        out.writeInt(keys.length);
+                        for (int i = 0; i < keys.length; i++) {
+                            writePair(out, keys[i], sizes[i], payload);
+                        }
+                        out.flush();
+                        in.readBoolean();
+                        break;
+                    case CMD_MULTIGET:
+                        out.writeByte(CMD_MULTIGET);
+                        out.writeInt(keys.length);
+                        for (String key : keys) {
+                            out.writeUTF(key);
+                        }
+                        out.flush();
+                        int found = in.readInt();
+                        for (int i = 0; i < found; i++) {
+                            in.readUTF();
+                            skipValue(in, compression);
+                        }
+                        break;
+                    case CMD_GETWHEN:
+                        // Sem o valor original a condição raramente se verifica: espera no máximo
+                        // o tempo que o pedido original esteve bloqueado
+                        out.writeByte(CMD_DEADLINE);
+                        out.writeInt((int) Math.max(1, (record.getServiceMicros() + 999) / 1000));
+                        out.writeByte(CMD_GETWHEN);
+                        out.writeUTF(keys[0]);
+                        writePair(out, keys[1], sizes[1], payload);
+                        out.flush();
+                        if (in.readBoolean()) {
+                            skipValue(in, compression);
+                        }
+                        break;
+                    case CMD_GETVERSION:
+                        out.writeByte(CMD_GETVERSION);
+                        out.writeUTF(keys[0]);
+                        out.flush();
+                        boolean exists = in.readBoolean();
+                        versions.put(keys[0], in.readLong());
+                        if (exists) {
+                            skipValue(in, compression);
+                        }
+                        break;
+                    case CMD_TXN:
+                        writeTransaction(out, keys, sizes, versions, payload);
+                        out.flush();
+                        in.readBoolean();
+                        in.readLong();
+                        break;
+                    case CMD_STATS:
+                        out.writeByte(CMD_STATS);
+                        out.flush();
+                        in.skipBytes(in.readInt());
+                        break;
+                    case CMD_FEATURES:
+                        out.writeByte(CMD_FEATURES);
+                        out.writeInt(FEATURE_COMPRESSION);
+                        out.flush();
+                        compression = (in.readInt() & FEATURE_COMPRESSION) != 0;
+                        break;
+                    case CMD_EXIT:
+                        out.writeByte(CMD_EXIT);
+                        out.flush();
+                        result.add(command, System.nanoTime() - sent);
+                        return;
+                    default:
+                        result.errors++;
+                        continue;
+                }
+                long end = System.nanoTime();
+                result.add(command, end - (speed > 0 ? target : sent));
+            }
+            out.writeByte(CMD_EXIT);
+            out.flush();
+        }
+    }
+
+    /**
+     * O sleep do sistema tem uma granularidade de dezenas de µs, maior do que o intervalo
+     * entre pedidos de um trace intenso: dorme até perto do instante e espera ativamente o resto.
+     */
+    private static void waitUntil(long target) throws InterruptedException {
+        long wait = target - System.nanoTime();
+        if (wait > SPIN_NANOS) {
+            wait -= SPIN_NANOS;
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+        while (target - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void writePair(DataOutputStream out, String key, int size, byte[] payload) throws IOException {
+        out.writeUTF(key);
+        out.writeInt(Math.max(0, size));
+        out.write(payload, 0, Math.max(0, size));
+    }
+
+    private static void writeTransaction(DataOutputStream out, String[] keys, int[] sizes,
+                                         Map<String, Long> versions, byte[] payload) throws IOException {
+        int reads = 0;
+        for (int size : sizes) {
+            if (size < 0) {
+                reads++;
+            }
+        }
+        out.writeByte(CMD_TXN);
+        out.writeInt(reads);
+        for (int i = 0; i < keys.length; i++) {
+            if (sizes[i] < 0) {
+                out.writeUTF(keys[i]);
+                out.writeLong(versions.getOrDefault(keys[i], 0L));
+            }
+        }
+        out.writeInt(keys.length - reads);
+        for (int i = 0; i < keys.length; i++) {
+            if (sizes[i] >= 0) {
+                writePair(out, keys[i], sizes[i], payload);
+            }
+        }
+    }
+
+    private static void skipValue(DataInputStream in, boolean compression) throws IOException {
+        if (compression && in.readByte() == ENCODING_DEFLATE) {
+            in.readInt();
+        }
+        in.skipBytes(in.readInt());
+    }
+
+    private static void report(List<ConnectionResult> results, long elapsedNanos) {
+        long[][] merged = new long[COMMAND_NAMES.length][];
+        int[] counts = new int[COMMAND_NAMES.length];
+        long[] lags = new long[0];
+        int operations = 0;
+        int errors = 0;
+        for (ConnectionResult result : results) {
+            for (int c = 0; c < COMMAND_NAMES.length; c++) {
+                if (result.counts[c] == 0) {
+                    continue;
+                }
+                merged[c] = merged[c] == null ? new long[0] : merged[c];
+                int offset = merged[c].length;
+                merged[c] = Arrays.copyOf(merged[c], offset + result.counts[c]);
+                System.arraycopy(result.latencies[c], 0, merged[c], offset, result.counts[c]);
+                counts[c] += result.counts[c];
+                operations += result.counts[c];
+            }
+            int offset = lags.length;
+            lags = Arrays.copyOf(lags, offset + result.lagCount);
+            System.arraycopy(result.lags, 0, lags, offset, result.lagCount);
+            errors += result.errors;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Reproduzidos %d pedidos em %.2f s: %.0f pedidos/s, erros=%d%n",
+                operations, seconds, operations / seconds, errors);
+        System.out.printf("%-11s %9s %10s %10s %10s %10s%n", "comando", "n", "p50 µs", "p99 µs", "p99.9 µs", "max µs");
+        for (int c = 0; c < COMMAND_NAMES.length; c++) {
+            if (counts[c] == 0) {
+                continue;
+            }
+            long[] values = merged[c];
+            Arrays.sort(values);
+            System.out.printf("%-11s %9d %10d %10d %10d %10d%n", COMMAND_NAMES[c], counts[c],
+                    percentile(values, 0.5), percentile(values, 0.99), percentile(values, 0.999),
+                    values[values.length - 1] / 1000);
+        }
+        if (lags.length > 0) {
+            Arrays.sort(lags);
+            System.out.printf("Atraso face ao trace: p50=%d µs p99=%d µs max=%d µs%n",
+                    percentile(lags, 0.5), percentile(lags, 0.99), lags[lags.length - 1] / 1000);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
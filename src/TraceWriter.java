@@ -0,0 +1,174 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Captura dos comandos recebidos pelo servidor, ativada com -Dsd.trace.file=caminho.
+ * Os handlers só colocam o registo numa fila (descartado se a fila estiver cheia);
+ * uma thread dedicada codifica e escreve o ficheiro.
+ *
+ * Formato: "SDTR", versão (byte), e depois por registo:
+ *   zigzag-varint delta do instante (µs), varint ligação, comando (byte), varint nº de chaves,
+ *   por chave: varint referência (0 = chave nova, seguida de varint tamanho + UTF-8; senão id + 1)
+ *              e varint tamanho do valor + 1 (0 = só leitura),
+ *   varint tempo de serviço (µs).
+ * As chaves novas recebem ids sequenciais enquanto o dicionário tiver menos de MAX_DICTIONARY entradas.
+ * Ao terminar o processo, um shutdown hook chama close: a fila é escrita e o ficheiro fechado.
+ */
+public class TraceWriter {
+    static final byte[] MAGIC = {'S', 'D', 'T', 'R'};
+    static final byte VERSION = 1;
+    static final int MAX_DICTIONARY = 1 << 20;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private final long startNanos;
+    private final BlockingQueue<TraceRecord> queue;
+    private final DataOutputStream out;
+    private final Map<String, Integer> dictionary;
+    private final LongAdder written;
+    private final LongAdder dropped;
+    private final Thread writer;
+    private volatile boolean closed;
+    private long lastTimeMicros;
+
+    public TraceWriter(OutputStream out) throws IOException {
+        this.startNanos = System.nanoTime();
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.dictionary = new HashMap<>();
+        this.written = new LongAdder();
+        this.dropped = new LongAdder();
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+
+        this.writer = new Thread(this::writeLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Devolve null se a captura não estiver ativa. */
+    public static TraceWriter fromProperties() {
+        String file = System.getProperty("sd.trace.file");
+        if (file == null) {
+            return null;
+        }
+        try {
+            System.out.println("A capturar os comandos recebidos em " + file);
+            TraceWriter trace = new TraceWriter(new FileOutputStream(file));
+            Runtime.getRuntime().addShutdownHook(new Thread(trace::close, "trace-close"));
+            return trace;
+        } catch (IOException e) {
+            System.err.println("Não foi possível abrir o ficheiro de trace: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Microssegundos desde o início da captura para um instante de System.nanoTime. */
+    public long toTraceTime(long nanoTime) {
+        return (nanoTime - startNanos) / 1000;
+    }
+
+    public void record(TraceRecord record) {
+        if (closed || !queue.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Para a captura: a thread de escrita esvazia a fila, faz flush e fecha o ficheiro.
+     * Espera no máximo CLOSE_TIMEOUT_MS; registos posteriores são descartados.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<TraceRecord> batch = new ArrayList<>();
+        try {
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    // Só close interrompe esta thread
+                    break;
+                }
+                writeBatch(batch);
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            writeBatch(batch);
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Erro a escrever o trace, captura parada: " + e.getMessage());
+        }
+    }
+
+    /** Escreve o lote com o que estiver na fila. */
+    private void writeBatch(List<TraceRecord> batch) throws IOException {
+        queue.drainTo(batch);
+        for (TraceRecord record : batch) {
+            write(record);
+        }
+        written.add(batch.size());
+        batch.clear();
+    }
+
+    private void write(TraceRecord record) throws IOException {
+        writeVarLong(zigzag(record.getTimeMicros() - lastTimeMicros));
+        lastTimeMicros = record.getTimeMicros();
+        writeVarLong(record.getConnection());
+        out.writeByte(record.getCommand());
+        String[] keys = record.getKeys();
+        int[] sizes = record.getSizes();
+        writeVarLong(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            Integer id = dictionary.get(keys[i]);
+            if (id != null) {
+                writeVarLong(id + 1);
+            } else {
+                byte[] encoded = keys[i].getBytes(StandardCharsets.UTF_8);
+                writeVarLong(0);
+                writeVarLong(encoded.length);
+                out.write(encoded);
+                if (dictionary.size() < MAX_DICTIONARY) {
+                    dictionary.put(keys[i], dictionary.size());
+                }
+            }
+            writeVarLong(sizes[i] + 1L);
+        }
+        writeVarLong(record.getServiceMicros());
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public String report() {
+        return "Trace: registos=" + written.sum() + " descartados=" + dropped.sum();
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Estado de um utilizador partilhado por todas as suas ligações:
+ * limites de ritmo (token buckets), quotas de chaves/bytes e contadores de uso.
+ */
+public class UserAccount {
+    private final String username;
+    private final UserLimits limits;
+    private final TokenBucket requestBucket;
+    private final TokenBucket bandwidthBucket;
+
+    private final AtomicLong keys;
+    private final AtomicLong bytes;
+
+    private final LongAdder requests;
+    private final LongAdder throttled;
+    private final LongAdder rejected;
+    private final LongAdder quotaExceeded;
+    private final LongAdder expired;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+
+    public UserAccount(String username, UserLimits limits) {
+        this.username = username;
+        this.limits = limits;
+        // Permite rajadas de até um segundo de tráfego
+        this.requestBucket = limits.getRequestsPerSecond() > 0
+                ? new TokenBucket(limits.getRequestsPerSecond(), limits.getRequestsPerSecond()) : null;
+        this.bandwidthBucket = limits.getBytesPerSecond() > 0
+                ? new TokenBucket(limits.getBytesPerSecond(), limits.getBytesPerSecond()) : null;
+        this.keys = new AtomicLong(0);
+        this.bytes = new AtomicLong(0);
+        this.requests = new LongAdder();
+        this.throttled = new LongAdder();
+        this.rejected = new LongAdder();
+        this.quotaExceeded = new LongAdder();
+        this.expired = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public UserLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Admite um pedido de {@code requestBytes} bytes.
+     * Com a política DELAY bloqueia até haver tokens; com REJECT devolve false de imediato.
+     * Com DELAY também rejeita logo se a espera ultrapassar o prazo do pedido
+     * ({@code deadline} em System.nanoTime, 0 = sem prazo).
+     */
+    public boolean admit(long requestBytes, long deadline) throws InterruptedException {
+        requests.increment();
+        bytesIn.add(requestBytes);
+        if (requestBucket == null && bandwidthBucket == null) {
+            return true;
+        }
+
+        boolean wasThrottled = false;
+        while (true) {
+            long wait = 0;
+            if (requestBucket != null) {
+                wait = requestBucket.tryAcquire(1);
+            }
+            if (wait == 0 && bandwidthBucket != null) {
+                wait = bandwidthBucket.tryAcquire(requestBytes);
+                if (wait > 0 && requestBucket != null) {
+                    // Devolve o token do pedido: será pedido de novo na próxima tentativa
+                    requestBucket.charge(-1);
+                }
+            }
+            if (wait == 0) {
+                return true;
+            }
+            if (!wasThrottled) {
+                throttled.increment();
+                wasThrottled = true;
+            }
+            if (limits.getPolicy() == UserLimits.Policy.REJECT) {
+                rejected.increment();
+                return false;
+            }
+            if (deadline != 0 && System.nanoTime() + wait - deadline > 0) {
+                expired.increment();
+                return false;
+            }
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    /** Pedido descartado ou GETWHEN terminado por ter passado o prazo. */
+    public void recordExpired() {
+        expired.increment();
+    }
+
+    /** Contabiliza os bytes de uma resposta; o excesso atrasa os pedidos seguintes. */
+    public void chargeResponse(long responseBytes) {
+        bytesOut.add(responseBytes);
+        if (bandwidthBucket != null && responseBytes > 0) {
+            bandwidthBucket.charge(responseBytes);
+        }
+    }
+
+    /**
+     * Reserva chaves e bytes na quota do utilizador (deltas podem ser negativos).
+     * Devolve false, sem alterar nada, se a reserva exceder a quota.
+     */
+    public boolean reserve(long deltaKeys, long deltaBytes) {
+        if (!reserve(keys, limits.getMaxKeys(), deltaKeys)) {
+            quotaExceeded.increment();
+            return false;
+        }
+        if (!reserve(bytes, limits.getMaxBytes(), deltaBytes)) {
+            keys.addAndGet(-deltaKeys);
+            quotaExceeded.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** Liberta chaves e bytes de valores que deixaram de ser deste utilizador. */
+    public void release(long releasedKeys, long releasedBytes) {
+        reserve(keys, 0, -releasedKeys);
+        reserve(bytes, 0, -releasedBytes);
+    }
+
+    /** O uso nunca fica negativo. */
+    private static boolean reserve(AtomicLong counter, long max, long delta) {
+        while (true) {
+            long current = counter.get();
+            long next = Math.max(0, current + delta);
+            if (max > 0 && delta > 0 && next > max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    public String report() {
+        return String.format("%s: pedidos=%d limitados=%d rejeitados=%d quota_excedida=%d expirados=%d "
+                        + "bytes_in=%d bytes_out=%d chaves=%d/%s bytes=%d/%s",
+                username.isEmpty() ? "(anónimo)" : username,
+                requests.sum(), throttled.sum(), rejected.sum(), quotaExceeded.sum(), expired.sum(),
+                bytesIn.sum(), bytesOut.sum(),
+                keys.get(), limits.getMaxKeys() > 0 ? String.valueOf(limits.getMaxKeys()) : "-",
+                bytes.get(), limits.getMaxBytes() > 0 ? String.valueOf(limits.getMaxBytes()) : "-");
+    }
+}
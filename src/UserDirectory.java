@@ -0,0 +1,230 @@
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Diretório de utilizadores, independente do storageLock dos dados.
+ * As passwords são guardadas como PBKDF2 com salt aleatório; o hash é calculado fora de qualquer lock.
+ * Os registos são acrescentados a um ficheiro (-Dsd.users.file, "users.db" por omissão, vazio
+ * para não persistir) e lidos no arranque.
+ * Depois de um LOGIN o cliente pode pedir um token de sessão e usá-lo para retomar a sessão
+ * noutra ligação sem voltar a calcular o hash da password.
+ */
+public class UserDirectory {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int TOKEN_BYTES = 24;
+    private static final int PURGE_INTERVAL = 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Salt fixo para os utilizadores que não existem: o LOGIN custa o mesmo hash, por isso o tempo
+    // de resposta não revela que nomes estão registados
+    private static final byte[] DUMMY_SALT = new byte[SALT_BYTES];
+
+    private static class Credentials {
+        final byte[] salt;
+        final byte[] hash;
+        final int iterations;
+
+        Credentials(byte[] salt, byte[] hash, int iterations) {
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+    }
+
+    private static class Session {
+        final String username;
+        final long expiresAt;
+
+        Session(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Credentials> users;
+    private final Map<String, Session> sessions;
+    private final int iterations;
+    private final long tokenTtlNanos;
+    private final File file;
+    private final Lock fileLock;
+    private DataOutputStream log;
+
+    private final LongAdder logins;
+    private final LongAdder failedLogins;
+    private final LongAdder resumes;
+    private final LongAdder issuedTokens;
+
+    public UserDirectory(File file, int iterations, long tokenTtlSeconds) {
+        this.users = new ConcurrentHashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
+        this.iterations = iterations;
+        this.tokenTtlNanos = tokenTtlSeconds * 1_000_000_000L;
+        this.file = file;
+        this.fileLock = new ReentrantLock();
+        this.logins = new LongAdder();
+        this.failedLogins = new LongAdder();
+        this.resumes = new LongAdder();
+        this.issuedTokens = new LongAdder();
+        load();
+    }
+
+    /**
+     * -Dsd.users.file=users.db      ficheiro onde os utilizadores são guardados ("" = só em memória)
+     * -Dsd.users.iterations=10000   iterações do PBKDF2 para novas passwords
+     * -Dsd.users.tokenTtl=3600      validade dos tokens de sessão, em segundos
+     */
+    public static UserDirectory fromProperties() {
+        String path = System.getProperty("sd.users.file", "users.db");
+        return new UserDirectory(path.isEmpty() ? null : new File(path),
+                Integer.getInteger("sd.users.iterations", 10000),
+                Long.getLong("sd.users.tokenTtl", 3600));
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                String username;
+                try {
+                    username = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                int iterations = in.readInt();
+                byte[] salt = new byte[in.readUnsignedByte()];
+                in.readFully(salt);
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                users.put(username, new Credentials(salt, hash, iterations));
+            }
+            System.out.println(users.size() + " utilizadores lidos de " + file);
+        } catch (EOFException e) {
+            // Último registo incompleto (paragem a meio de uma escrita): é ignorado
+            System.err.println("Registo incompleto no fim de " + file);
+        } catch (IOException e) {
+            System.err.println("Erro ao ler os utilizadores de " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void append(String username, Credentials credentials) throws IOException {
+        if (file == null) {
+            return;
+        }
+        fileLock.lock();
+        try {
+            if (log == null) {
+                log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+            log.writeUTF(username);
+            log.writeInt(credentials.iterations);
+            log.writeByte(credentials.salt.length);
+            log.write(credentials.salt);
+            log.writeByte(credentials.hash.length);
+            log.write(credentials.hash);
+            log.flush();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 indisponível", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public boolean register(String username, String password) {
+        if (users.containsKey(username)) {
+            return false;
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Credentials credentials = new Credentials(salt, hash(password, salt, iterations), iterations);
+        if (users.putIfAbsent(username, credentials) != null) {
+            return false;
+        }
+        try {
+            append(username, credentials);
+        } catch (IOException e) {
+            System.err.println("Erro ao guardar o utilizador " + username + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    public boolean authenticate(String username, String password) {
+        Credentials credentials = users.get(username);
+        if (credentials == null) {
+            hash(password, DUMMY_SALT, iterations);
+            failedLogins.increment();
+            return false;
+        }
+        boolean valid = MessageDigest.isEqual(credentials.hash,
+                hash(password, credentials.salt, credentials.iterations));
+        (valid ? logins : failedLogins).increment();
+        return valid;
+    }
+
+    /** Cria um token de sessão para um utilizador já autenticado. */
+    public byte[] issueToken(String username) {
+        byte[] token = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(token);
+        sessions.put(Base64.getEncoder().encodeToString(token),
+                new Session(username, System.nanoTime() + tokenTtlNanos));
+        issuedTokens.increment();
+        if (issuedTokens.sum() % PURGE_INTERVAL == 0) {
+            purgeExpired();
+        }
+        return token;
+    }
+
+    /** Devolve o utilizador do token, ou null se o token não existir ou tiver expirado. */
+    public String resume(byte[] token) {
+        String key = Base64.getEncoder().encodeToString(token);
+        Session session = sessions.get(key);
+        if (session == null) {
+            return null;
+        }
+        if (System.nanoTime() - session.expiresAt >= 0) {
+            sessions.remove(key, session);
+            return null;
+        }
+        resumes.increment();
+        return session.username;
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().expiresAt >= 0) {
+                it.remove();
+            }
+        }
+    }
+
+    public String report() {
+        return "Utilizadores: registados=" + users.size() + " logins=" + logins.sum()
+                + " falhados=" + failedLogins.sum() + " sessões retomadas=" + resumes.sum()
+                + " tokens ativos=" + sessions.size();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Limites aplicados a um utilizador. Um valor 0 significa "sem limite".
+ * Lidos das propriedades do sistema, com valores por omissão e exceções por utilizador:
+ *   -Dsd.limits.requests=500         pedidos por segundo
+ *   -Dsd.limits.bandwidth=1048576    bytes por segundo (pedidos + respostas)
+ *   -Dsd.limits.keys=10000           chaves criadas
+ *   -Dsd.limits.bytes=67108864       bytes armazenados
+ *   -Dsd.limits.policy=delay|reject  o que fazer a pedidos acima do ritmo
+ *   -Dsd.limits.batch.requests=50    exceção para o utilizador "batch"
+ */
+public class UserLimits {
+    public enum Policy { DELAY, REJECT }
+
+    private final long requestsPerSecond;
+    private final long bytesPerSecond;
+    private final long maxKeys;
+    private final long maxBytes;
+    private final Policy policy;
+
+    public UserLimits(long requestsPerSecond, long bytesPerSecond, long maxKeys, long maxBytes, Policy policy) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxKeys = maxKeys;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    public static UserLimits forUser(String username) {
+        return new UserLimits(
+                property(username, "requests"),
+                property(username, "bandwidth"),
+                property(username, "keys"),
+                property(username, "bytes"),
+                "reject".equalsIgnoreCase(stringProperty(username, "policy")) ? Policy.REJECT : Policy.DELAY);
+    }
+
+    private static String stringProperty(String username, String name) {
+        String value = System.getProperty("sd.limits." + username + "." + name);
+        return value != null ? value : System.getProperty("sd.limits." + name);
+    }
+
+    private static long property(String username, String name) {
+        String value = stringProperty(username, name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Limite inválido para " + name + ": " + value);
+            return 0;
+        }
+    }
+
+    public long getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getMaxKeys() {
+        return maxKeys;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,138 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de valores endereçados pelo conteúdo, ativado com -Dsd.dedup.threshold=N.
+ * Valores com pelo menos N bytes (já comprimidos, se for o caso) são guardados uma única vez
+ * e partilhados pelas chaves que os referem, com contagem de referências.
+ * O hash é calculado fora do lock (hash); intern e release exigem o write lock do storage.
+ */
+public class ValuePool {
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final int threshold;
+    private final Map<Content, Content> pool;
+
+    // Protegidos pelo write lock do storage
+    private long sharedBytes;
+    private long savedBytes;
+    private long hits;
+    private long misses;
+
+    private final LongAdder hashedValues;
+    private final LongAdder hashNanos;
+
+    private static class Content {
+        final byte[] data;
+        final int hash;
+        int refs;
+
+        Content(byte[] data, int hash) {
+            this.data = data;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Content && ((Content) o).hash == hash && Arrays.equals(((Content) o).data, data);
+        }
+    }
+
+    public ValuePool(int threshold) {
+        this.threshold = threshold;
+        this.pool = new HashMap<>();
+        this.hashedValues = new LongAdder();
+        this.hashNanos = new LongAdder();
+    }
+
+    /** Devolve null se a deduplicação não estiver ativa. */
+    public static ValuePool fromProperties() {
+        Integer threshold = Integer.getInteger("sd.dedup.threshold");
+        return threshold != null && threshold > 0 ? new ValuePool(threshold) : null;
+    }
+
+    /** Marca o valor como partilhável, calculando o hash do conteúdo. Feito fora do lock. */
+    public StoredValue hash(StoredValue value) {
+        byte[] data = value.getStoredData();
+        if (data.length < threshold) {
+            return value;
+        }
+        long start = System.nanoTime();
+        int hash = contentHash(data);
+        hashNanos.add(System.nanoTime() - start);
+        hashedValues.increment();
+        return value.asShared(hash);
+    }
+
+    /**
+     * Hash do conteúdo, 8 bytes de cada vez (Arrays.hashCode processa um byte por iteração).
+     * Colisões são resolvidas comparando os bytes, pelo que não precisa de ser criptográfico.
+     */
+    static int contentHash(byte[] data) {
+        long h = P2 ^ data.length;
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            h = Long.rotateLeft(h ^ ((long) LONGS.get(data, i) * P1), 31) * P2;
+        }
+        for (; i < data.length; i++) {
+            h = Long.rotateLeft(h ^ ((data[i] & 0xFF) * P1), 11) * P2;
+        }
+        h ^= h >>> 33;
+        h *= P1;
+        h ^= h >>> 29;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Devolve o valor a guardar, a apontar para a cópia do pool. Requer o write lock. */
+    public StoredValue intern(StoredValue value, long version, UserAccount owner) {
+        Content probe = new Content(value.getStoredData(), value.getContentHash());
+        Content content = pool.get(probe);
+        if (content == null) {
+            content = probe;
+            pool.put(content, content);
+            sharedBytes += content.data.length;
+            misses++;
+        } else {
+            savedBytes += content.data.length;
+            hits++;
+        }
+        content.refs++;
+        return value.withData(content.data, version, owner);
+    }
+
+    /** Larga uma referência a um valor partilhado que deixou de estar guardado. Requer o write lock. */
+    public void release(StoredValue value) {
+        Content content = pool.get(new Content(value.getStoredData(), value.getContentHash()));
+        if (content == null || content.data != value.getStoredData()) {
+            return;
+        }
+        if (--content.refs == 0) {
+            pool.remove(content);
+            sharedBytes -= content.data.length;
+        } else {
+            savedBytes -= content.data.length;
+        }
+    }
+
+    /** Requer pelo menos o read lock do storage. */
+    public String report() {
+        long hashed = hashedValues.sum();
+        return String.format("Deduplicação (>= %d bytes): valores_únicos=%d bytes_únicos=%d bytes_poupados=%d "
+                        + "hits=%d misses=%d hash_médio=%.0f ns/PUT",
+                threshold, pool.size(), sharedBytes, savedBytes, hits, misses,
+                hashed > 0 ? (double) hashNanos.sum() / hashed : 0.0);
+    }
+}